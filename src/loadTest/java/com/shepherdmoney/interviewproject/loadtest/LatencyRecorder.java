@@ -0,0 +1,65 @@
+package com.shepherdmoney.interviewproject.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Records request latencies of one endpoint and reports throughput and percentiles
+ */
+public class LatencyRecorder {
+
+    private final String endpoint;
+
+    private long[] latenciesNanos = new long[1024];
+    private int count;
+    private int errors;
+    private long firstStartNanos = Long.MAX_VALUE;
+    private long lastEndNanos = Long.MIN_VALUE;
+
+    public LatencyRecorder(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    // Record one request, startNanos and endNanos from System.nanoTime()
+    public synchronized void record(long startNanos, long endNanos, boolean success) {
+        if (count == latenciesNanos.length) {
+            latenciesNanos = Arrays.copyOf(latenciesNanos, count * 2);
+        }
+        latenciesNanos[count++] = endNanos - startNanos;
+        if (!success) {
+            errors++;
+        }
+        firstStartNanos = Math.min(firstStartNanos, startNanos);
+        lastEndNanos = Math.max(lastEndNanos, endNanos);
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized int getErrors() {
+        return errors;
+    }
+
+    // Requests per second over the time this endpoint was exercised
+    public synchronized double throughput() {
+        if (count == 0) {
+            return 0.0;
+        }
+        return count / ((lastEndNanos - firstStartNanos) / 1e9);
+    }
+
+    // Latency percentile in milliseconds, percentile in [0, 100]
+    public synchronized double percentileMillis(double percentile) {
+        if (count == 0) {
+            return 0.0;
+        }
+        long[] sorted = Arrays.copyOf(latenciesNanos, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))] / 1e6;
+    }
+}
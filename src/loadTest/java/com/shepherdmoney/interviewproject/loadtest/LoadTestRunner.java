@@ -0,0 +1,277 @@
+package com.shepherdmoney.interviewproject.loadtest;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.google.gson.Gson;
+import com.shepherdmoney.interviewproject.InterviewProjectApplication;
+
+/**
+ * End-to-end load test: starts the application against a throwaway H2 file,
+ * replays a seeded mix of requests and reports throughput and latency
+ * percentiles per endpoint
+ */
+// Run with ./gradlew loadTest, tune with -Dloadtest.<setting>=<value>
+public class LoadTestRunner {
+
+    // Settings, all overridable with -Dloadtest.<name>
+    private static final int THREADS = Integer.getInteger("loadtest.threads", 16);
+    private static final int USERS = Integer.getInteger("loadtest.users", 100);
+    private static final int CARDS_PER_USER = Integer.getInteger("loadtest.cardsPerUser", 3);
+    private static final int BATCHES = Integer.getInteger("loadtest.batches", 100);
+    private static final int BATCH_SIZE = Integer.getInteger("loadtest.batchSize", 500);
+    private static final double BACKDATED_RATIO = Double.parseDouble(System.getProperty("loadtest.backdatedRatio", "0.1"));
+    private static final int READS = Integer.getInteger("loadtest.reads", 20000);
+    private static final long SEED = Long.getLong("loadtest.seed", 42L);
+    private static final String REPORT = System.getProperty("loadtest.report", "build/loadtest/report.csv");
+
+    private static final LocalDate START_DATE = LocalDate.of(2020, 1, 1);
+
+    private final HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final Gson gson = new Gson();
+    private final Random random = new Random(SEED);
+    private final Map<String, LatencyRecorder> recorders = new ConcurrentHashMap<>();
+    private final List<String> recorderOrder = new ArrayList<>();
+
+    private final String baseUrl;
+    private final List<Integer> userIds = new ArrayList<>();
+    private final List<String> cardNumbers = new ArrayList<>();
+    // Next (not yet reported) day of each card, used to generate balance feeds
+    private final Map<String, Integer> nextDayOfCard = new ConcurrentHashMap<>();
+
+    private LoadTestRunner(int port) {
+        this.baseUrl = "http://localhost:" + port;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dataDir = Files.createTempDirectory("loadtest-h2");
+        // Extra arguments (./gradlew loadTest --args='...') override application properties
+        // Every database (shards included) and store file is kept in the run's
+        // temporary directory, leaving those of the home directory alone
+        List<String> applicationArgs = new ArrayList<>(List.of("--server.port=0",
+                "--spring.datasource.url=jdbc:h2:file:" + dataDir.resolve("database") + ";DB_CLOSE_ON_EXIT=FALSE",
+                "--sharding.url-template=jdbc:h2:file:" + dataDir.resolve("database-shard-%d")
+                        + ";DB_CLOSE_ON_EXIT=FALSE",
+                "--balance.offheap.path=" + dataDir.resolve("balance-store.dat"),
+                "--logging.level.root=WARN"));
+        applicationArgs.addAll(List.of(args));
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(InterviewProjectApplication.class)
+                .run(applicationArgs.toArray(String[]::new));
+        try {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            new LoadTestRunner(port).run();
+        } finally {
+            context.close();
+            deleteRecursively(dataDir);
+        }
+    }
+
+    private void run() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            // Setup: users and their credit cards
+            runAll(executor, createUserTasks());
+            runAll(executor, addCreditCardTasks());
+
+            // Bulk ingest only, then reads only, then reads during bulk ingest
+            runAll(executor, updateBalanceTasks("ingest", BATCHES));
+            runAll(executor, readTasks("read", READS));
+            List<Runnable> mixed = new ArrayList<>(updateBalanceTasks("mixed", BATCHES / 2));
+            mixed.addAll(readTasks("mixed", READS / 2));
+            Collections.shuffle(mixed, random);
+            runAll(executor, mixed);
+        } finally {
+            executor.shutdown();
+        }
+        report();
+    }
+
+    private List<Runnable> createUserTasks() {
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            String body = gson.toJson(Map.of("name", "user" + i, "email", "user" + i + "@example.com"));
+            tasks.add(() -> {
+                String userId = send("setup", "PUT /user", HttpRequest.newBuilder(URI.create(baseUrl + "/user"))
+                        .header("Content-Type", "application/json")
+                        .PUT(HttpRequest.BodyPublishers.ofString(body)));
+                if (userId != null) {
+                    synchronized (userIds) {
+                        userIds.add(Integer.parseInt(userId));
+                    }
+                }
+            });
+        }
+        return tasks;
+    }
+
+    private List<Runnable> addCreditCardTasks() {
+        // Sort so generated card numbers are assigned to users deterministically
+        userIds.sort(Comparator.naturalOrder());
+        List<Runnable> tasks = new ArrayList<>();
+        for (int userId : userIds) {
+            for (int i = 0; i < CARDS_PER_USER; i++) {
+                String cardNumber = String.format("4000%012d", cardNumbers.size());
+                cardNumbers.add(cardNumber);
+                nextDayOfCard.put(cardNumber, 0);
+                String body = gson.toJson(Map.of("userId", userId, "cardIssuanceBank", "Bank" + i,
+                        "cardNumber", cardNumber));
+                tasks.add(() -> send("setup", "POST /credit-card",
+                        HttpRequest.newBuilder(URI.create(baseUrl + "/credit-card"))
+                                .header("Content-Type", "application/json")
+                                .POST(HttpRequest.BodyPublishers.ofString(body))));
+            }
+        }
+        return tasks;
+    }
+
+    // Daily balance feeds for random cards with some back-dated corrections
+    private List<Runnable> updateBalanceTasks(String phase, int batches) {
+        List<Runnable> tasks = new ArrayList<>();
+        for (int batch = 0; batch < batches; batch++) {
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (int row = 0; row < BATCH_SIZE; row++) {
+                String cardNumber = pickHot(cardNumbers);
+                int nextDay = nextDayOfCard.get(cardNumber);
+                int day;
+                if (nextDay > 0 && random.nextDouble() < BACKDATED_RATIO) {
+                    day = random.nextInt(nextDay);
+                } else {
+                    day = nextDay;
+                    nextDayOfCard.put(cardNumber, nextDay + 1);
+                }
+                rows.add(Map.of("creditCardNumber", cardNumber,
+                        "balanceDate", START_DATE.plusDays(day).toString(),
+                        "balanceAmount", Math.round(random.nextDouble() * 500000) / 100.0));
+            }
+            String body = gson.toJson(rows);
+            tasks.add(() -> send(phase, "POST /credit-card:update-balance",
+                    HttpRequest.newBuilder(URI.create(baseUrl + "/credit-card:update-balance"))
+                            .header("Content-Type", "application/json")
+                            .POST(HttpRequest.BodyPublishers.ofString(body))));
+        }
+        return tasks;
+    }
+
+    // Read mix skewed towards a hot set of users and cards
+    private List<Runnable> readTasks(String phase, int reads) {
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < reads; i++) {
+            double pick = random.nextDouble();
+            String endpoint;
+            String query;
+            if (pick < 0.40) {
+                endpoint = "GET /credit-card:balance";
+                query = "creditCardNumber=" + pickHot(cardNumbers);
+            } else if (pick < 0.65) {
+                endpoint = "GET /credit-card:all";
+                query = "userId=" + pickHot(userIds);
+            } else if (pick < 0.85) {
+                endpoint = "GET /credit-card:user-id";
+                query = "creditCardNumber=" + pickHot(cardNumbers);
+            } else if (pick < 0.95) {
+                endpoint = "GET /credit-card:all-async";
+                query = "userId=" + pickHot(userIds);
+            } else {
+                endpoint = "GET /credit-card:user-id-async";
+                query = "creditCardNumber=" + pickHot(cardNumbers);
+            }
+            URI uri = URI.create(baseUrl + endpoint.substring(4) + "?" + query);
+            tasks.add(() -> send(phase, endpoint, HttpRequest.newBuilder(uri).GET()));
+        }
+        return tasks;
+    }
+
+    // 80% of picks go to the first 20% of the values
+    private <T> T pickHot(List<T> values) {
+        int hotCount = Math.max(1, values.size() / 5);
+        return random.nextDouble() < 0.8 ? values.get(random.nextInt(hotCount))
+                : values.get(random.nextInt(values.size()));
+    }
+
+    // Send a request, record its latency, return the body on success
+    private String send(String phase, String endpoint, HttpRequest.Builder request) {
+        LatencyRecorder recorder = recorders.computeIfAbsent(phase + " " + endpoint, name -> {
+            synchronized (recorderOrder) {
+                recorderOrder.add(name);
+            }
+            return new LatencyRecorder(name);
+        });
+        long start = System.nanoTime();
+        try {
+            HttpResponse<String> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+            boolean success = response.statusCode() / 100 == 2;
+            recorder.record(start, System.nanoTime(), success);
+            return success ? response.body() : null;
+        } catch (IOException e) {
+            recorder.record(start, System.nanoTime(), false);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void runAll(ExecutorService executor, List<Runnable> tasks) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Runnable task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    // Print a table and write a CSV report to compare releases
+    private void report() throws IOException {
+        System.out.printf("%n%-46s %8s %7s %10s %9s %9s %9s %9s%n", "endpoint", "requests", "errors",
+                "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        Path reportPath = Path.of(REPORT);
+        if (reportPath.getParent() != null) {
+            Files.createDirectories(reportPath.getParent());
+        }
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(reportPath))) {
+            csv.println("endpoint,requests,errors,throughput,p50_ms,p99_ms,p999_ms,max_ms");
+            for (String name : recorderOrder) {
+                LatencyRecorder recorder = recorders.get(name);
+                double[] latencies = { recorder.percentileMillis(50), recorder.percentileMillis(99),
+                        recorder.percentileMillis(99.9), recorder.percentileMillis(100) };
+                System.out.printf("%-46s %8d %7d %10.1f %9.2f %9.2f %9.2f %9.2f%n", name, recorder.getCount(),
+                        recorder.getErrors(), recorder.throughput(), latencies[0], latencies[1], latencies[2],
+                        latencies[3]);
+                csv.printf("%s,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f%n", name, recorder.getCount(), recorder.getErrors(),
+                        recorder.throughput(), latencies[0], latencies[1], latencies[2], latencies[3]);
+            }
+        }
+        System.out.println("\nReport written to " + reportPath.toAbsolutePath());
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
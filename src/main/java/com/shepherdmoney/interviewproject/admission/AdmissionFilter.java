@@ -0,0 +1,168 @@
+package com.shepherdmoney.interviewproject.admission;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import com.shepherdmoney.interviewproject.vo.response.AdmissionLaneStatsView;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Admission control: every request of a limited endpoint class takes permits of
+ * its lane before reaching the controller, or is rejected with 429 once the
+ * lane's queue is full or the wait is too long
+ */
+/*
+ * Reads, balance uploads and history exports each have their own lane, so a
+ * burst of huge uploads queues behind the other uploads only and can't take
+ * the request threads and database connections the reads need. Uploads take
+ * one permit per bytes-per-permit of payload, so a few huge uploads count as
+ * many small ones. Other endpoints (user and card creation, admin endpoints)
+ * are not limited
+ */
+@Component
+@ConditionalOnProperty(name = "admission.enabled", havingValue = "true", matchIfMissing = true)
+public class AdmissionFilter extends OncePerRequestFilter {
+
+    private final AdmissionLane readLane;
+    private final AdmissionLane ingestLane;
+    private final AdmissionLane exportLane;
+    private final long ingestBytesPerPermit;
+
+    public AdmissionFilter(@Value("${admission.read.max-permits:150}") int readMaxPermits,
+            @Value("${admission.read.max-queue:50}") int readMaxQueue,
+            @Value("${admission.read.max-wait:PT0.5S}") Duration readMaxWait,
+            @Value("${admission.ingest.max-permits:8}") int ingestMaxPermits,
+            @Value("${admission.ingest.max-queue:32}") int ingestMaxQueue,
+            @Value("${admission.ingest.max-wait:PT5S}") Duration ingestMaxWait,
+            @Value("${admission.ingest.bytes-per-permit:262144}") long ingestBytesPerPermit,
+            @Value("${admission.export.max-permits:2}") int exportMaxPermits,
+            @Value("${admission.export.max-queue:0}") int exportMaxQueue,
+            @Value("${admission.export.max-wait:PT0S}") Duration exportMaxWait) {
+        this.readLane = new AdmissionLane("read", readMaxPermits, readMaxQueue, readMaxWait);
+        this.ingestLane = new AdmissionLane("ingest", ingestMaxPermits, ingestMaxQueue, ingestMaxWait);
+        this.exportLane = new AdmissionLane("export", exportMaxPermits, exportMaxQueue, exportMaxWait);
+        this.ingestBytesPerPermit = ingestBytesPerPermit;
+    }
+
+    public List<AdmissionLaneStatsView> getStats() {
+        return List.of(readLane.getStats(), ingestLane.getStats(), exportLane.getStats());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        AdmissionLane lane = laneOf(request);
+        if (lane == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        int acquiredPermits;
+        try {
+            acquiredPermits = lane.acquire(weightOf(request, lane));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value());
+            return;
+        }
+        if (acquiredPermits == 0) {
+            // Reject before reading the body, the client retries later
+            response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(lane.retryAfterSeconds()));
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            return;
+        }
+
+        ReleaseOnce release = new ReleaseOnce(lane, acquiredPermits);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            if (request.isAsyncStarted()) {
+                // Async and streamed responses keep their permits until they complete
+                request.getAsyncContext().addListener(release);
+            } else {
+                release.run();
+            }
+        }
+    }
+
+    // Lane of the endpoint class of a request, null if not limited
+    AdmissionLane laneOf(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        if ("POST".equals(request.getMethod()) && path.equals("/credit-card:update-balance")) {
+            return ingestLane;
+        }
+        if ("GET".equals(request.getMethod()) && path.startsWith("/credit-card")) {
+            return path.equals("/credit-card:export-history") ? exportLane : readLane;
+        }
+        return null;
+    }
+
+    // Uploads take a permit per started bytes-per-permit, the whole lane if the
+    // size is not known up front (chunked upload)
+    int weightOf(HttpServletRequest request, AdmissionLane lane) {
+        if (lane != ingestLane) {
+            return 1;
+        }
+        long contentLength = request.getContentLengthLong();
+        if (contentLength < 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (contentLength + ingestBytesPerPermit - 1)
+                / ingestBytesPerPermit));
+    }
+
+    // Releases the permits of a request exactly once, whichever way it ends
+    private static class ReleaseOnce implements Runnable, AsyncListener {
+
+        private final AdmissionLane lane;
+        private final int acquiredPermits;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        ReleaseOnce(AdmissionLane lane, int acquiredPermits) {
+            this.lane = lane;
+            this.acquiredPermits = acquiredPermits;
+        }
+
+        @Override
+        public void run() {
+            if (released.compareAndSet(false, true)) {
+                lane.release(acquiredPermits);
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            run();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            run();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            run();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // Still the same request, keep the permits
+        }
+    }
+}
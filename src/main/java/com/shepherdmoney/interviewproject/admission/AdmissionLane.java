@@ -0,0 +1,87 @@
+package com.shepherdmoney.interviewproject.admission;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.shepherdmoney.interviewproject.vo.response.AdmissionLaneStatsView;
+
+/**
+ * Concurrency limit of one class of endpoints: a fixed number of permits, a
+ * bounded queue of requests waiting for permits and a maximum wait
+ */
+public class AdmissionLane {
+
+    private final String name;
+    private final int maxPermits;
+    private final int maxQueue;
+    private final Duration maxWait;
+
+    // Fair, so a request needing many permits is not starved by small ones
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AdmissionLane(String name, int maxPermits, int maxQueue, Duration maxWait) {
+        if (maxPermits <= 0 || maxQueue < 0) {
+            throw new IllegalArgumentException("Lane " + name + " needs positive permits and a queue size");
+        }
+        this.name = name;
+        this.maxPermits = maxPermits;
+        this.maxQueue = maxQueue;
+        this.maxWait = maxWait;
+        this.permits = new Semaphore(maxPermits, true);
+    }
+
+    // Take the permits of a request, waiting in the queue up to the maximum wait
+    // Returns the number of permits taken (to release later), 0 if rejected
+    public int acquire(int weight) throws InterruptedException {
+        // A request never needs more than the whole lane
+        int requiredPermits = Math.max(1, Math.min(weight, maxPermits));
+
+        // Free permits and nobody waiting: no need to queue
+        if (!permits.hasQueuedThreads() && permits.tryAcquire(requiredPermits)) {
+            admitted.incrementAndGet();
+            return requiredPermits;
+        }
+
+        // Reject right away if the queue is full
+        if (queued.incrementAndGet() > maxQueue) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return 0;
+        }
+        try {
+            if (!permits.tryAcquire(requiredPermits, maxWait.toMillis(), TimeUnit.MILLISECONDS)) {
+                // Waited too long, the lane is saturated
+                rejected.incrementAndGet();
+                return 0;
+            }
+        } finally {
+            queued.decrementAndGet();
+        }
+        admitted.incrementAndGet();
+        return requiredPermits;
+    }
+
+    public void release(int acquiredPermits) {
+        permits.release(acquiredPermits);
+    }
+
+    // Seconds a rejected client should wait before retrying
+    public long retryAfterSeconds() {
+        return Math.max(1, (maxWait.toMillis() + 999) / 1000);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public AdmissionLaneStatsView getStats() {
+        return new AdmissionLaneStatsView(name, maxPermits, maxPermits - permits.availablePermits(),
+                Math.max(0, queued.get()), maxQueue, admitted.get(), rejected.get());
+    }
+}
@@ -0,0 +1,28 @@
+package com.shepherdmoney.interviewproject.controller;
+
+import com.shepherdmoney.interviewproject.admission.AdmissionFilter;
+import com.shepherdmoney.interviewproject.vo.response.AdmissionLaneStatsView;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+public class AdmissionController {
+
+    // Optional admission control (admission.enabled)
+    @Autowired(required = false)
+    private AdmissionFilter admissionFilter;
+
+    @GetMapping("/admission:stats")
+    // Returning the queue depth and rejections of every admission lane
+    public ResponseEntity<List<AdmissionLaneStatsView>> getAdmissionStats() {
+        if (admissionFilter == null) {
+            // Return 404 Not Found if admission control is disabled
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(admissionFilter.getStats());
+    }
+}
@@ -0,0 +1,142 @@
+package com.shepherdmoney.interviewproject.controller;
+
+import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
+import com.shepherdmoney.interviewproject.repository.UserRepository;
+import com.shepherdmoney.interviewproject.service.BalanceHistoryExportService;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.zip.GZIPOutputStream;
+
+@RestController
+public class BalanceHistoryExportController {
+
+    @Autowired
+    private BalanceHistoryExportService balanceHistoryExportService;
+
+    @Autowired
+    private CreditCardRepository creditCardRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    // Exports may stream far longer than other async requests
+    @Value("${export.timeout:PT30M}")
+    private Duration exportTimeout;
+
+    @GetMapping("/credit-card:export-history")
+    // Streaming the balance history of a credit card or of all cards of a user as
+    // NDJSON or CSV, gzip compressed if the client accepts it
+    public ResponseEntity<StreamingResponseBody> exportBalanceHistory(
+            @RequestParam(required = false) String creditCardNumber,
+            @RequestParam(required = false) Integer userId,
+            @RequestParam(defaultValue = "ndjson") String format,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            HttpServletRequest request) {
+        try {
+            // Exactly one of credit card number and user id
+            if ((creditCardNumber == null) == (userId == null)) {
+                return ResponseEntity.badRequest().build();
+            }
+            BalanceHistoryExportService.Format exportFormat = BalanceHistoryExportService.Format
+                    .valueOf(format.toUpperCase());
+
+            // Return 400 Bad Request if the credit card or user does not exist
+            boolean exists = creditCardNumber != null
+                    ? shardRouter.onShardOf(creditCardNumber,
+                            () -> creditCardRepository.findByNumber(creditCardNumber)).isPresent()
+                    : userRepository.existsById(userId);
+            if (!exists) {
+                return ResponseEntity.badRequest().build();
+            }
+
+            boolean gzip = acceptsGzipHelper(acceptEncoding);
+            StreamingResponseBody body = outputStream -> {
+                // Runs once the request is async, only this request gets the export timeout
+                request.getAsyncContext().setTimeout(exportTimeout.toMillis());
+                // Sync flush, so flushed rows reach the client before the export ends
+                OutputStream exportStream = gzip ? new GZIPOutputStream(outputStream, 8192, true) : outputStream;
+                Writer writer = new BufferedWriter(new OutputStreamWriter(exportStream, StandardCharsets.UTF_8));
+                if (creditCardNumber != null) {
+                    balanceHistoryExportService.exportCreditCard(creditCardNumber, from, to, exportFormat, writer);
+                } else {
+                    balanceHistoryExportService.exportUser(userId, from, to, exportFormat, writer);
+                }
+                if (exportStream instanceof GZIPOutputStream gzipStream) {
+                    gzipStream.finish();
+                }
+            };
+
+            String extension = exportFormat == BalanceHistoryExportService.Format.CSV ? "csv" : "ndjson";
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                    .contentType(exportFormat == BalanceHistoryExportService.Format.CSV
+                            ? MediaType.parseMediaType("text/csv")
+                            : MediaType.parseMediaType("application/x-ndjson"))
+                    .header(HttpHeaders.CONTENT_DISPOSITION,
+                            "attachment; filename=\"balance-history." + extension + "\"")
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            if (gzip) {
+                response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+            }
+            return response.body(body);
+        } catch (Exception e) {
+            // Unknown format or an exception while checking the request
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    // Whether an Accept-Encoding header allows gzip, listed or through "*", with a
+    // non-zero q-value (e.g. not "gzip;q=0")
+    private static boolean acceptsGzipHelper(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double gzipQuality = -1;
+        double anyQuality = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim().toLowerCase();
+            double quality = 1.0;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        // Malformed q-value, the coding is not accepted
+                        quality = 0.0;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzipQuality = Math.max(gzipQuality, quality);
+            } else if (name.equals("*")) {
+                anyQuality = quality;
+            }
+        }
+        // An explicit gzip entry wins over "*"
+        return gzipQuality >= 0 ? gzipQuality > 0 : anyQuality > 0;
+    }
+}
@@ -0,0 +1,71 @@
+package com.shepherdmoney.interviewproject.controller;
+
+import com.shepherdmoney.interviewproject.store.BalanceIndex;
+import com.shepherdmoney.interviewproject.vo.response.BalanceIndexStatsView;
+import com.shepherdmoney.interviewproject.vo.response.CardBalanceView;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+public class BalanceIndexController {
+
+    // Largest number of cards returned by one query
+    private static final int MAX_LIMIT = 10000;
+
+    // Optional balance index (balance.index.enabled)
+    @Autowired(required = false)
+    private BalanceIndex balanceIndex;
+
+    @GetMapping("/credit-card:balances-over")
+    // Returning the cards whose current balance exceeds the threshold, highest first
+    public ResponseEntity<List<CardBalanceView>> getBalancesOver(@RequestParam double threshold,
+            @RequestParam(defaultValue = "1000") int limit) {
+        ResponseEntity<List<CardBalanceView>> unavailable = unavailableHelper(limit);
+        if (unavailable != null) {
+            return unavailable;
+        }
+        return ResponseEntity.ok(balanceIndex.findBalancesOver(threshold, limit));
+    }
+
+    @GetMapping("/credit-card:top-balances")
+    // Returning the n cards with the highest current balance, highest first
+    public ResponseEntity<List<CardBalanceView>> getTopBalances(@RequestParam(defaultValue = "100") int n) {
+        ResponseEntity<List<CardBalanceView>> unavailable = unavailableHelper(n);
+        if (unavailable != null) {
+            return unavailable;
+        }
+        return ResponseEntity.ok(balanceIndex.findTopBalances(n));
+    }
+
+    @GetMapping("/balance-index:stats")
+    // Returning how the index was loaded and when it was last checkpointed
+    public ResponseEntity<BalanceIndexStatsView> getBalanceIndexStats() {
+        if (balanceIndex == null) {
+            // Return 404 Not Found if the index is disabled
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(balanceIndex.getStats());
+    }
+
+    // Error response if the query can't be answered, null otherwise
+    private ResponseEntity<List<CardBalanceView>> unavailableHelper(int limit) {
+        if (balanceIndex == null) {
+            // Return 404 Not Found if the index is disabled
+            return ResponseEntity.notFound().build();
+        }
+        if (!balanceIndex.isReady()) {
+            // Return 503 Service Unavailable while the index is loading
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        if (limit <= 0 || limit > MAX_LIMIT) {
+            // Return 400 Bad Request for a limit out of range
+            return ResponseEntity.badRequest().build();
+        }
+        return null;
+    }
+}
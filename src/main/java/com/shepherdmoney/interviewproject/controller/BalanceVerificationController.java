@@ -0,0 +1,44 @@
+package com.shepherdmoney.interviewproject.controller;
+
+import com.shepherdmoney.interviewproject.service.BalanceVerificationService;
+import com.shepherdmoney.interviewproject.vo.response.BalanceVerificationReportView;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+public class BalanceVerificationController {
+
+    @Autowired
+    private BalanceVerificationService balanceVerificationService;
+
+    @PostMapping("/credit-card:verify-balances")
+    // Starting a background run which rebuilds every card's balance history from
+    // its balance records, optionally repairing the cards which differ
+    public ResponseEntity<BalanceVerificationReportView> startBalanceVerification(
+            @RequestParam(defaultValue = "false") boolean repair) {
+        if (repair && !balanceVerificationService.isRepairSafe()) {
+            // Return 400 Bad Request if the balance records can't be replayed in the
+            // order they were added
+            return ResponseEntity.badRequest().build();
+        }
+        if (!balanceVerificationService.start(repair)) {
+            // Return 409 Conflict with the progress of the run already in progress
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body(balanceVerificationService.getReport().orElse(null));
+        }
+        // Return 202 Accepted, progress is available with GET
+        return ResponseEntity.accepted().body(balanceVerificationService.getReport().orElse(null));
+    }
+
+    @GetMapping("/credit-card:verify-balances")
+    // Returning the progress of the current (or last) run
+    public ResponseEntity<BalanceVerificationReportView> getBalanceVerification() {
+        return balanceVerificationService.getReport()
+                .map(ResponseEntity::ok)
+                // Return 404 Not Found if no run was started yet
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+}
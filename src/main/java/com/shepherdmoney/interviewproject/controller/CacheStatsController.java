@@ -0,0 +1,57 @@
+package com.shepherdmoney.interviewproject.controller;
+
+import com.shepherdmoney.interviewproject.vo.response.CacheRegionStatsView;
+
+import jakarta.persistence.EntityManagerFactory;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RestController
+public class CacheStatsController {
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @GetMapping("/cache:stats")
+    // Returning hit ratio of every second-level cache region
+    public ResponseEntity<List<CacheRegionStatsView>> getCacheStats() {
+        try {
+            Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+            if (!statistics.isStatisticsEnabled()) {
+                // Return 404 Not Found if statistics are disabled (hibernate.generate_statistics)
+                return ResponseEntity.notFound().build();
+            }
+            List<CacheRegionStatsView> regionStats = new ArrayList<>();
+
+            // Entity, collection and query result regions
+            for (String region : statistics.getSecondLevelCacheRegionNames()) {
+                CacheRegionStatistics cacheRegionStatistics = statistics.getCacheRegionStatistics(region);
+                if (cacheRegionStatistics != null) {
+                    regionStats.add(toView(region, cacheRegionStatistics.getHitCount(),
+                            cacheRegionStatistics.getMissCount(), cacheRegionStatistics.getPutCount()));
+                }
+            }
+
+            // Return the statistics in a 200 OK response
+            return ResponseEntity.ok(regionStats);
+        } catch (Exception e) {
+            // If statistics are not available
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    private CacheRegionStatsView toView(String region, long hitCount, long missCount, long putCount) {
+        long lookups = hitCount + missCount;
+        double hitRatio = lookups == 0 ? 0.0 : (double) hitCount / lookups;
+        return new CacheRegionStatsView(region, hitCount, missCount, putCount, hitRatio);
+    }
+}
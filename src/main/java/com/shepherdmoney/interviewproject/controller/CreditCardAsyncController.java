@@ -0,0 +1,69 @@
+package com.shepherdmoney.interviewproject.controller;
+
+import com.shepherdmoney.interviewproject.service.CreditCardQueryService;
+import com.shepherdmoney.interviewproject.util.SingleFlight;
+import com.shepherdmoney.interviewproject.vo.response.CreditCardView;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+@RestController
+public class CreditCardAsyncController {
+
+    @Autowired
+    private CreditCardQueryService creditCardQueryService;
+
+    // Spring Boot's task executor, sized by spring.task.execution.pool.*
+    @Autowired
+    @Qualifier("applicationTaskExecutor")
+    private Executor applicationTaskExecutor;
+
+    // Concurrent lookups of the same user id / card number share one query
+    private final SingleFlight<Integer, Optional<List<CreditCardView>>> userCardsLookups = new SingleFlight<>();
+    private final SingleFlight<String, Optional<Integer>> cardOwnerLookups = new SingleFlight<>();
+
+    @GetMapping("/credit-card:all-async")
+    // Returning all credit cards of a user without blocking the request thread
+    public CompletableFuture<ResponseEntity<List<CreditCardView>>> getAllCardOfUserAsync(@RequestParam int userId) {
+        return userCardsLookups
+                .execute(userId, () -> creditCardQueryService.findCreditCardViewsOfUser(userId),
+                        applicationTaskExecutor)
+                .thenApply(creditCardViews -> creditCardViews
+                        // Return the list of credit cards in a 200 OK response
+                        .map(ResponseEntity::ok)
+                        // Return an empty list if the user does not exist
+                        .orElseGet(() -> ResponseEntity.status(HttpStatus.BAD_REQUEST).body(List.of())))
+                .exceptionally(e -> ResponseEntity.status(errorStatus(e)).build());
+    }
+
+    @GetMapping("/credit-card:user-id-async")
+    // Returning user id given credit card number without blocking the request thread
+    public CompletableFuture<ResponseEntity<Integer>> getUserIdForCreditCardAsync(
+            @RequestParam String creditCardNumber) {
+        return cardOwnerLookups
+                .execute(creditCardNumber, () -> creditCardQueryService.findUserIdOfCreditCard(creditCardNumber),
+                        applicationTaskExecutor)
+                .thenApply(userId -> userId
+                        // Return the user ID in a 200 OK response
+                        .map(ResponseEntity::ok)
+                        // Return 400 Bad Request if no user is associated with the credit card
+                        .orElseGet(() -> ResponseEntity.badRequest().build()))
+                .exceptionally(e -> ResponseEntity.status(errorStatus(e)).build());
+    }
+
+    // 503 if the executor is saturated, 400 for any other lookup failure
+    private HttpStatus errorStatus(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof RejectedExecutionException ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.BAD_REQUEST;
+    }
+}
@@ -1,20 +1,31 @@
 package com.shepherdmoney.interviewproject.controller;
 
+import com.shepherdmoney.interviewproject.diagnostics.CreditCardSaveEvent;
 import com.shepherdmoney.interviewproject.model.BalanceHistory;
 import com.shepherdmoney.interviewproject.model.CreditCard;
 import com.shepherdmoney.interviewproject.model.User;
 import com.shepherdmoney.interviewproject.repository.BalanceHistoryRepository;
 import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
 import com.shepherdmoney.interviewproject.repository.UserRepository;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+import com.shepherdmoney.interviewproject.store.BalanceIndex;
+import com.shepherdmoney.interviewproject.store.CreditCardLocks;
+import com.shepherdmoney.interviewproject.store.CreditCardReadModel;
+import com.shepherdmoney.interviewproject.store.IdempotencyIndex;
+import com.shepherdmoney.interviewproject.store.OffHeapBalanceStore;
 import com.shepherdmoney.interviewproject.vo.request.AddCreditCardToUserPayload;
 import com.shepherdmoney.interviewproject.vo.request.UpdateBalancePayload;
 import com.shepherdmoney.interviewproject.vo.response.CreditCardView;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -22,6 +33,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 
 @RestController
@@ -39,6 +52,34 @@ public class CreditCardController {
     @Autowired
     private BalanceHistoryRepository balanceHistoryRepository;
 
+    // Routes credit cards and balance history to their storage shard
+    @Autowired
+    private ShardRouter shardRouter;
+
+    // Dedup index for retried update-balance batches
+    @Autowired
+    private IdempotencyIndex idempotencyIndex;
+
+    // Applies each shard's part of an update-balance batch in one transaction
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    // Orders the publishes of a card's balance history to the derived stores
+    @Autowired
+    private CreditCardLocks creditCardLocks;
+
+    // Optional off-heap store serving balance reads (balance.offheap.enabled)
+    @Autowired(required = false)
+    private OffHeapBalanceStore offHeapBalanceStore;
+
+    // Optional read model serving the read endpoints (readmodel.enabled)
+    @Autowired(required = false)
+    private CreditCardReadModel creditCardReadModel;
+
+    // Optional index of current balances (balance.index.enabled)
+    @Autowired(required = false)
+    private BalanceIndex balanceIndex;
+
     @PostMapping("/credit-card")
     // Creating new credit card and adding to user
     public ResponseEntity<Integer> addCreditCardToUser(@RequestBody AddCreditCardToUserPayload payload) {
@@ -46,7 +87,10 @@ public class CreditCardController {
             // Check if the user exists
             Optional<User> optionalUser = userRepository.findById(payload.getUserId());
             if (optionalUser.isPresent()) {
-                Optional<CreditCard> optionalCreditCard = creditCardRepository.findByNumber(payload.getCardNumber());
+                // Credit cards are stored on the shard of their number, users on every shard
+                String cardNumber = payload.getCardNumber();
+                Optional<CreditCard> optionalCreditCard = shardRouter.onShardOf(cardNumber,
+                        () -> creditCardRepository.findByNumber(cardNumber));
                 if (!optionalCreditCard.isPresent()) {
                     // Create a new CreditCard entity
                     CreditCard creditCard = new CreditCard();
@@ -58,7 +102,17 @@ public class CreditCardController {
                     creditCard.setOwner(user);
 
                     // Save the credit card
-                    CreditCard savedCreditCard = creditCardRepository.save(creditCard);
+                    CreditCard savedCreditCard = shardRouter.onShardOf(cardNumber,
+                            () -> creditCardRepository.save(creditCard));
+                    // Feed the new credit card to the read model
+                    if (creditCardReadModel != null) {
+                        creditCardReadModel.publishCardAdded(user.getId(), cardNumber,
+                                payload.getCardIssuanceBank());
+                    }
+                    // A new credit card starts with a zero balance
+                    if (balanceIndex != null) {
+                        balanceIndex.update(cardNumber, 0.0);
+                    }
 
                     // Return the ID of the saved credit card in a 200 OK response
                     return ResponseEntity.ok(savedCreditCard.getId());
@@ -76,11 +130,24 @@ public class CreditCardController {
     // Returning all credit cards of a user
     public ResponseEntity<List<CreditCardView>> getAllCardOfUser(@RequestParam int userId) {
         try {
+            // Serve from the read model when it knows the user
+            if (creditCardReadModel != null) {
+                Optional<List<CreditCardView>> creditCardViews = creditCardReadModel
+                        .findCreditCardViewsOfUser(userId);
+                if (creditCardViews.isPresent()) {
+                    return ResponseEntity.ok(creditCardViews.get());
+                }
+            }
+
             // Get the user by ID
             Optional<User> optionalUser = userRepository.findById(userId);
             if (optionalUser.isPresent()) {
                 // Get all credit cards associated with the user
-                List<CreditCard> creditCards = optionalUser.get().getCreditCards();
+                // When sharded, the user's cards are spread over the shards, collect them
+                // from every shard
+                List<CreditCard> creditCards = shardRouter.isSharded()
+                        ? shardRouter.fanOut(() -> creditCardRepository.findByOwnerId(userId))
+                        : optionalUser.get().getCreditCards();
 
                 // Convert CreditCard entities to CreditCardView DTOs
                 List<CreditCardView> creditCardViews = creditCards.stream()
@@ -103,8 +170,17 @@ public class CreditCardController {
     // Returning user id given credit card number
     public ResponseEntity<Integer> getUserIdForCreditCard(@RequestParam String creditCardNumber) {
         try {
-            // Find the credit card by its number
-            Optional<CreditCard> optionalCreditCard = creditCardRepository.findByNumber(creditCardNumber);
+            // Serve from the read model when it knows the credit card
+            if (creditCardReadModel != null) {
+                Optional<Integer> userId = creditCardReadModel.findUserIdOfCreditCard(creditCardNumber);
+                if (userId.isPresent()) {
+                    return ResponseEntity.ok(userId.get());
+                }
+            }
+
+            // Find the credit card by its number on its shard
+            Optional<CreditCard> optionalCreditCard = shardRouter.onShardOf(creditCardNumber,
+                    () -> creditCardRepository.findByNumber(creditCardNumber));
             if (optionalCreditCard.isPresent()) {
                 // Get the user ID associated with the credit card
                 int userId = optionalCreditCard.get().getOwner().getId();
@@ -120,63 +196,267 @@ public class CreditCardController {
         }
     }
 
-    @PostMapping("/credit-card:update-balance")
-    // Update Balance History
-    public ResponseEntity<?> updateBalance(@RequestBody UpdateBalancePayload[] payload) {
+    @GetMapping("/credit-card:balance")
+    // Returning the balance of a credit card on a date (current balance if no date)
+    public ResponseEntity<Double> getBalance(@RequestParam String creditCardNumber,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate date) {
         try {
-            // Group the payload entries based on credit card number
-            Map<String, List<UpdateBalancePayload>> groupedPayload = new HashMap<>();
-            for (UpdateBalancePayload updatePayload : payload) {
-                groupedPayload.computeIfAbsent(updatePayload.getCreditCardNumber(), k -> new ArrayList<>())
-                        .add(updatePayload);
-            }
-
-            // Sort each group chronologically by balance date
-            groupedPayload.forEach((creditCardNumber, payloadList) -> payloadList
-                    .sort(Comparator.comparing(UpdateBalancePayload::getBalanceDate)));
-
-            // Iterate through each payload to update balance history
-            for (List<UpdateBalancePayload> group : groupedPayload.values()) {
-                // Find the credit card by its number
-                Optional<CreditCard> optionalCreditCard = creditCardRepository
-                        .findByNumber(group.get(0).getCreditCardNumber());
-
-                if (optionalCreditCard.isPresent()) {
-                    CreditCard creditCard = optionalCreditCard.get();
-                    for (UpdateBalancePayload updatePayload : group) {
-
-                        // Create a new BalanceHistory entry
-                        BalanceHistory balanceHistory = new BalanceHistory();
-                        balanceHistory.setCreditCard(creditCard);
-                        balanceHistory.setDate(updatePayload.getBalanceDate());
-                        balanceHistory.setBalance(updatePayload.getBalanceAmount());
-
-                        // Save the BalanceHistory entry to the database
-                        BalanceHistory addedBalanceHistory = balanceHistoryRepository.save(balanceHistory);
-                        if (creditCard.getBalanceHistorySet() == null) {
-                            creditCard.setBalanceHistorySet(new HashSet<>());
-                        }
-                        creditCard.getBalanceHistorySet().add(addedBalanceHistory);
-
-                        // Update balance history
-                        creditCard.addBalanceHistory(balanceHistory);
-                        creditCardRepository.save(creditCard);
+            // Serve from the read model without touching the credit card row
+            if (creditCardReadModel != null) {
+                double balance = date == null ? creditCardReadModel.getCurrentBalance(creditCardNumber)
+                        : creditCardReadModel.getBalanceOnDate(creditCardNumber, date);
+                if (!Double.isNaN(balance)) {
+                    return ResponseEntity.ok(balance);
+                }
+            }
 
-                    }
-                } else {
-                    // Return 400 Bad Request if no credit card is associated with the given card
-                    // number
-                    return ResponseEntity.badRequest()
-                            .body("Credit card with number " + group.get(0).getCreditCardNumber()
-                                    + " does not exist.");
+            // Serve from the off-heap store without reading the credit card row
+            if (offHeapBalanceStore != null) {
+                double balance = date == null ? offHeapBalanceStore.getCurrentBalance(creditCardNumber)
+                        : offHeapBalanceStore.getBalanceOnDate(creditCardNumber, date);
+                if (!Double.isNaN(balance)) {
+                    return ResponseEntity.ok(balance);
                 }
             }
-            // Return 200 OK if update is successful
-            return ResponseEntity.ok().body("Update successful for given balance history payload");
+
+            // Find the credit card by its number on its shard
+            Optional<CreditCard> optionalCreditCard = shardRouter.onShardOf(creditCardNumber,
+                    () -> creditCardRepository.findByNumber(creditCardNumber));
+            if (optionalCreditCard.isPresent()) {
+                CreditCard creditCard = optionalCreditCard.get();
+
+                // Fall back to the balance history stored with the credit card
+                double balance = date == null ? creditCard.getCurrentBalance() : creditCard.getBalanceOnDate(date);
+                return ResponseEntity.ok(balance);
+            } else {
+                // Return 400 Bad Request if the credit card does not exist
+                return ResponseEntity.badRequest().build();
+            }
+        } catch (Exception e) {
+            // If an exception occurs during getting balance for Credit Card
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+    }
+
+    @PostMapping("/credit-card:update-balance")
+    // Update Balance History
+    // With compact=true, balances that don't change any balance read are skipped
+    // With an Idempotency-Key header, a retried batch returns the original result
+    public ResponseEntity<?> updateBalance(@RequestBody UpdateBalancePayload[] payload,
+            @RequestParam(defaultValue = "false") boolean compact,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey) {
+        String fingerprint = null;
+        // Shards whose part of the batch is committed, a retry of a batch which
+        // failed partway skips them
+        Set<Integer> appliedShards = new HashSet<>();
+        if (idempotencyKey != null) {
+            fingerprint = IdempotencyIndex.fingerprint(payload);
+            IdempotencyIndex.BatchResult previousResult = idempotencyIndex.claim(idempotencyKey, fingerprint);
+            if (previousResult != null) {
+                return replayedResultHelper(idempotencyKey, fingerprint, previousResult);
+            }
+            appliedShards.addAll(idempotencyIndex.getAppliedShards(idempotencyKey));
+        }
+
+        boolean completed = false;
+        try {
+            ResponseEntity<String> response = updateBalanceHelper(payload, compact, appliedShards);
+            // Remember the result for retries of this batch
+            if (idempotencyKey != null) {
+                idempotencyIndex.complete(idempotencyKey, fingerprint, response.getStatusCode().value(),
+                        response.getBody());
+            }
+            completed = true;
+            return response;
         } catch (Exception e) {
             // If an exception occurs during updating balance history payload
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        } finally {
+            // Let a retry apply the rest of the batch, also when an Error escapes
+            if (idempotencyKey != null && !completed) {
+                idempotencyIndex.release(idempotencyKey, appliedShards);
+            }
+        }
+    }
+
+    // Result for a batch whose idempotency key was already used
+    private ResponseEntity<?> replayedResultHelper(String idempotencyKey, String fingerprint,
+            IdempotencyIndex.BatchResult previousResult) {
+        if (!previousResult.fingerprint().equals(fingerprint)) {
+            // Return 422 if the key was used for a different batch
+            return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY)
+                    .body("Idempotency key " + idempotencyKey + " was used with a different payload.");
+        }
+        if (!previousResult.completed()) {
+            // Return 409 if the original batch is still being applied
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body("Batch with idempotency key " + idempotencyKey + " is still in progress.");
+        }
+        // Return the original result without touching the database
+        return ResponseEntity.status(previousResult.status())
+                .header("Idempotent-Replayed", "true")
+                .body(previousResult.body());
+    }
+
+    // Apply a batch of balance updates, one transaction per shard
+    private ResponseEntity<String> updateBalanceHelper(UpdateBalancePayload[] payload, boolean compact,
+            Set<Integer> appliedShards) {
+        // Group the payload entries based on credit card number
+        Map<String, List<UpdateBalancePayload>> groupedPayload = new HashMap<>();
+        for (UpdateBalancePayload updatePayload : payload) {
+            groupedPayload.computeIfAbsent(updatePayload.getCreditCardNumber(), k -> new ArrayList<>())
+                    .add(updatePayload);
+        }
+
+        // Sort each group chronologically by balance date
+        groupedPayload.forEach((creditCardNumber, payloadList) -> payloadList
+                .sort(Comparator.comparing(UpdateBalancePayload::getBalanceDate)));
+
+        // Check every credit card before applying anything, so a batch with an
+        // unknown card changes nothing
+        for (String creditCardNumber : groupedPayload.keySet()) {
+            if (shardRouter.onShardOf(creditCardNumber,
+                    () -> creditCardRepository.findByNumber(creditCardNumber)).isEmpty()) {
+                // Return 400 Bad Request if no credit card is associated with the given card
+                // number
+                return ResponseEntity.badRequest()
+                        .body("Credit card with number " + creditCardNumber + " does not exist.");
+            }
+        }
+
+        // Credit card and its balance history are stored on the card's shard
+        Map<Integer, List<List<UpdateBalancePayload>>> groupsByShard = new TreeMap<>();
+        groupedPayload.forEach((creditCardNumber, group) -> groupsByShard
+                .computeIfAbsent(shardRouter.shardOf(creditCardNumber), k -> new ArrayList<>()).add(group));
+
+        // Iterate through each shard to update balance history
+        for (Map.Entry<Integer, List<List<UpdateBalancePayload>>> shardGroups : groupsByShard.entrySet()) {
+            int shard = shardGroups.getKey();
+            // Already committed by an earlier attempt of this batch
+            if (appliedShards.contains(shard)) {
+                continue;
+            }
+            updateShardBalanceHelper(shard, shardGroups.getValue(), compact);
+            appliedShards.add(shard);
+        }
+        // Return 200 OK if update is successful
+        return ResponseEntity.ok().body("Update successful for given balance history payload");
+    }
+
+    // Apply the balance updates of the credit cards of one shard in one
+    // transaction, a failure rolls all of them back
+    private void updateShardBalanceHelper(int shard, List<List<UpdateBalancePayload>> groups, boolean compact) {
+        // Balance index checkpoints taken during the update replay the cards
+        List<String> creditCardNumbers = groups.stream().map(group -> group.get(0).getCreditCardNumber()).toList();
+        if (balanceIndex != null) {
+            creditCardNumbers.forEach(balanceIndex::beginUpdate);
+        }
+        try {
+            // Held until published, so the cards are published in commit order
+            creditCardLocks.withLocks(creditCardNumbers, () -> {
+                List<CreditCard> updatedCreditCards = shardRouter.onShard(shard,
+                        () -> new TransactionTemplate(transactionManager).execute(status -> {
+                            List<CreditCard> creditCards = new ArrayList<>();
+                            for (List<UpdateBalancePayload> group : groups) {
+                                creditCards.add(applyCardBalanceHelper(group, compact));
+                            }
+                            return creditCards;
+                        }));
+                // Derived stores only see committed balance histories
+                updatedCreditCards.forEach(this::publishBalanceHistoryHelper);
+                return null;
+            });
+        } finally {
+            if (balanceIndex != null) {
+                creditCardNumbers.forEach(balanceIndex::endUpdate);
+            }
+        }
+    }
+
+    private CreditCard applyCardBalanceHelper(List<UpdateBalancePayload> group, boolean compact) {
+        // Find the credit card by its number
+        String creditCardNumber = group.get(0).getCreditCardNumber();
+        CreditCard creditCard = creditCardRepository.findByNumber(creditCardNumber)
+                .orElseThrow(() -> new IllegalStateException("Credit card " + creditCardNumber + " was deleted"));
+
+        UpdateBalancePayload previousPayload = null;
+        for (UpdateBalancePayload updatePayload : group) {
+
+            // Skip exact repeats of the previous row, setting the same balance again
+            // changes nothing but would add a BalanceHistory row
+            boolean repeatedPayload = updatePayload.equals(previousPayload);
+            previousPayload = updatePayload;
+            if (repeatedPayload) {
+                continue;
+            }
+
+            // Skip redundant balances (same as the balance already in effect)
+            if (compact && creditCard.isRedundantBalance(updatePayload.getBalanceDate(),
+                    updatePayload.getBalanceAmount())) {
+                continue;
+            }
+
+            // Create a new BalanceHistory entry
+            BalanceHistory balanceHistory = new BalanceHistory();
+            balanceHistory.setCreditCard(creditCard);
+            balanceHistory.setDate(updatePayload.getBalanceDate());
+            balanceHistory.setBalance(updatePayload.getBalanceAmount());
+
+            // Save the BalanceHistory entry to the database
+            BalanceHistory addedBalanceHistory = balanceHistoryRepository.save(balanceHistory);
+            if (creditCard.getBalanceHistorySet() == null) {
+                creditCard.setBalanceHistorySet(new HashSet<>());
+            }
+            creditCard.getBalanceHistorySet().add(addedBalanceHistory);
+
+            // Update balance history
+            creditCard.addBalanceHistory(balanceHistory, compact);
+
         }
+        // Write the card's new balance history JSON once for the whole group
+        saveCreditCardHelper(creditCard);
+        return creditCard;
     }
 
+    // Feed a committed balance history to the off-heap store, read model and
+    // balance index
+    private void publishBalanceHistoryHelper(CreditCard creditCard) {
+        if (creditCard.getBalanceHistory() == null) {
+            return;
+        }
+
+        // Keep the off-heap copy of the balance history up to date
+        if (offHeapBalanceStore != null) {
+            offHeapBalanceStore.put(creditCard.getNumber(), creditCard.getBalanceHistory());
+        }
+
+        // Feed the new balance history to the read model
+        if (creditCardReadModel != null) {
+            creditCardReadModel.publishBalanceHistoryChanged(creditCard.getNumber(),
+                    creditCard.getBalanceHistory());
+        }
+
+        // Move the credit card to its new current balance in the balance index
+        if (balanceIndex != null) {
+            balanceIndex.update(creditCard.getNumber(), creditCard.getBalanceHistory());
+        }
+    }
+
+    // Save a credit card and flush its whole balance history JSON, timed for JFR
+    // The card is already managed by the transaction, so save alone writes
+    // nothing, the flush is what sends the UPDATE with the JSON (and the inserts
+    // of the group's balance history records)
+    private void saveCreditCardHelper(CreditCard creditCard) {
+        CreditCardSaveEvent event = new CreditCardSaveEvent();
+        event.begin();
+        creditCardRepository.saveAndFlush(creditCard);
+        event.end();
+        if (event.shouldCommit()) {
+            event.cardId = creditCard.getId();
+            event.historySize = creditCard.getBalanceHistory() == null ? 0 : creditCard.getBalanceHistory().size();
+            event.jsonLength = creditCard.getBalanceHistoryJson() == null ? 0
+                    : creditCard.getBalanceHistoryJson().length();
+            event.commit();
+        }
+    }
 }
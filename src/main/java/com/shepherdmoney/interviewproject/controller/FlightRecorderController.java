@@ -0,0 +1,109 @@
+package com.shepherdmoney.interviewproject.controller;
+
+import com.shepherdmoney.interviewproject.service.FlightRecorderService;
+
+import jdk.jfr.Recording;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+@RestController
+public class FlightRecorderController {
+
+    // Longest on-demand profile
+    private static final Duration MAX_PROFILE_DURATION = Duration.ofMinutes(10);
+    // Time allowed past the profile's duration to stop and dump it
+    private static final Duration PROFILE_DUMP_TIMEOUT = Duration.ofSeconds(30);
+
+    @Autowired
+    private FlightRecorderService flightRecorderService;
+
+    @GetMapping("/diagnostics:profile")
+    // Recording a JFR profile (CPU and allocation samples, balance history events)
+    // for the given duration and returning the .jfr file, open it with JDK Mission
+    // Control or `jfr print`
+    // The request thread is released right away, the response is sent once the
+    // profile is dumped
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> recordProfile(
+            @RequestParam(defaultValue = "PT30S") Duration duration) {
+        // Return 400 Bad Request if the duration is out of range
+        if (duration.isNegative() || duration.isZero() || duration.compareTo(MAX_PROFILE_DURATION) > 0) {
+            DeferredResult<ResponseEntity<StreamingResponseBody>> result = new DeferredResult<>();
+            result.setResult(ResponseEntity.badRequest().build());
+            return result;
+        }
+
+        DeferredResult<ResponseEntity<StreamingResponseBody>> result = new DeferredResult<>(
+                duration.plus(PROFILE_DUMP_TIMEOUT).toMillis());
+        try {
+            Optional<CompletableFuture<Path>> profile = flightRecorderService.startProfile(duration);
+            if (profile.isEmpty()) {
+                // Return 409 Conflict if a profile is already being recorded
+                result.setResult(ResponseEntity.status(HttpStatus.CONFLICT).build());
+                return result;
+            }
+
+            // Request timed out or failed: stop the profile now, so another one can start
+            result.onTimeout(() -> profile.get().cancel(false));
+            result.onError(e -> profile.get().cancel(false));
+            profile.get().whenComplete((file, e) -> {
+                if (e != null) {
+                    result.setErrorResult(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build());
+                } else if (!result.setResult(jfrResponseHelper("balance-history-profile.jfr",
+                        outputStream -> copyAndDeleteHelper(file, outputStream)))) {
+                    // Nobody is waiting for it anymore
+                    file.toFile().delete();
+                }
+            });
+        } catch (Exception e) {
+            // If JFR is not available in this JVM
+            result.setResult(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build());
+        }
+        return result;
+    }
+
+    @GetMapping("/diagnostics:recording")
+    // Returning the always-on recording of the recent past (diagnostics.jfr.continuous)
+    public ResponseEntity<StreamingResponseBody> dumpContinuousRecording() {
+        try {
+            Optional<Path> file = flightRecorderService.dumpContinuousRecording();
+            if (file.isEmpty()) {
+                // Return 404 Not Found if the continuous recording is disabled
+                return ResponseEntity.notFound().build();
+            }
+            return jfrResponseHelper("balance-history-continuous.jfr",
+                    outputStream -> copyAndDeleteHelper(file.get(), outputStream));
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    private ResponseEntity<StreamingResponseBody> jfrResponseHelper(String fileName, StreamingResponseBody body) {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
+                .body(body);
+    }
+
+    private void copyAndDeleteHelper(Path file, OutputStream outputStream) throws IOException {
+        try {
+            Files.copy(file, outputStream);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.shepherdmoney.interviewproject.controller;
+
+import com.shepherdmoney.interviewproject.store.CreditCardReadModel;
+import com.shepherdmoney.interviewproject.vo.response.ReadModelStatsView;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+public class ReadModelController {
+
+    // Optional read model (readmodel.enabled)
+    @Autowired(required = false)
+    private CreditCardReadModel creditCardReadModel;
+
+    @GetMapping("/read-model:stats")
+    // Returning how far the read model lags behind the writes
+    public ResponseEntity<ReadModelStatsView> getReadModelStats() {
+        if (creditCardReadModel == null) {
+            // Return 404 Not Found if the read model is disabled
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(creditCardReadModel.getStats());
+    }
+}
@@ -1,14 +1,24 @@
 package com.shepherdmoney.interviewproject.controller;
 
+import com.shepherdmoney.interviewproject.model.CreditCard;
 import com.shepherdmoney.interviewproject.model.User;
+import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
 import com.shepherdmoney.interviewproject.repository.UserRepository;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+import com.shepherdmoney.interviewproject.store.BalanceIndex;
+import com.shepherdmoney.interviewproject.store.CreditCardLocks;
+import com.shepherdmoney.interviewproject.store.CreditCardReadModel;
+import com.shepherdmoney.interviewproject.store.OffHeapBalanceStore;
 import com.shepherdmoney.interviewproject.vo.request.CreateUserPayload;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
+
 @RestController
 public class UserController {
 
@@ -16,6 +26,34 @@ public class UserController {
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private CreditCardRepository creditCardRepository;
+
+    // Users are stored on every shard, credit cards on one
+    @Autowired
+    private ShardRouter shardRouter;
+
+    // Copies new users to the other shards
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    // Orders the removal of deleted credit cards from the derived stores after
+    // their last update
+    @Autowired
+    private CreditCardLocks creditCardLocks;
+
+    // Optional off-heap balance store (balance.offheap.enabled)
+    @Autowired(required = false)
+    private OffHeapBalanceStore offHeapBalanceStore;
+
+    // Optional read model (readmodel.enabled)
+    @Autowired(required = false)
+    private CreditCardReadModel creditCardReadModel;
+
+    // Optional index of current balances (balance.index.enabled)
+    @Autowired(required = false)
+    private BalanceIndex balanceIndex;
+
     @PutMapping("/user")
     public ResponseEntity<Integer> createUser(@RequestBody CreateUserPayload payload) {
         try {
@@ -27,6 +65,14 @@ public class UserController {
             // Save the user in the database
             User savedUser = userRepository.save(newUser);
 
+            // Copy the user (with the id from shard 0) to the other shards, so
+            // credit cards on any shard can reference their owner
+            copyUserToShardsHelper(savedUser);
+            // Feed the new user to the read model
+            if (creditCardReadModel != null) {
+                creditCardReadModel.publishUserCreated(savedUser.getId());
+            }
+
             // Return the id of the saved user in 200 OK response
             return ResponseEntity.ok(savedUser.getId());
 
@@ -36,13 +82,66 @@ public class UserController {
         }
     }
 
+    // Copy a user saved on shard 0 to the other shards
+    // The shards can't share a transaction, so if a copy fails the user is
+    // removed again from every shard it was written to, shard 0 last
+    private void copyUserToShardsHelper(User savedUser) {
+        int copiedShards = 1;
+        try {
+            for (; copiedShards < shardRouter.getShardCount(); copiedShards++) {
+                shardRouter.onShard(copiedShards, () -> jdbcTemplate.update(
+                        "INSERT INTO my_user (id, name, email) VALUES (?, ?, ?)",
+                        savedUser.getId(), savedUser.getName(), savedUser.getEmail()));
+            }
+        } catch (RuntimeException e) {
+            for (int shard = copiedShards - 1; shard >= 1; shard--) {
+                shardRouter.onShard(shard, () -> jdbcTemplate.update("DELETE FROM my_user WHERE id = ?",
+                        savedUser.getId()));
+            }
+            userRepository.deleteById(savedUser.getId());
+            throw e;
+        }
+    }
+
     @DeleteMapping("/user")
     public ResponseEntity<String> deleteUser(@RequestParam int userId) {
         try {
             // Check if a user with the given ID exists
             if (userRepository.existsById(userId)) {
-                // Delete the user
-                userRepository.deleteById(userId);
+                // Hold the locks of the user's credit cards, so an update committed
+                // before the deletion can't publish them again after it
+                List<String> creditCardNumbers = List.of();
+                if (offHeapBalanceStore != null || balanceIndex != null || creditCardReadModel != null) {
+                    creditCardNumbers = shardRouter.fanOut(() -> creditCardRepository.findByOwnerId(userId))
+                            .stream().map(CreditCard::getNumber).toList();
+                }
+                List<String> lockedCreditCardNumbers = creditCardNumbers;
+                creditCardLocks.withLocks(creditCardNumbers, () -> {
+                    // Remove the user's credit cards from the off-heap balance store and the
+                    // balance index
+                    for (String creditCardNumber : lockedCreditCardNumbers) {
+                        if (offHeapBalanceStore != null) {
+                            offHeapBalanceStore.remove(creditCardNumber);
+                        }
+                        if (balanceIndex != null) {
+                            balanceIndex.remove(creditCardNumber);
+                        }
+                    }
+
+                    // Delete the user (and its credit cards) from every shard, shard 0 last
+                    // as it is the one checked for existence
+                    for (int shard = shardRouter.getShardCount() - 1; shard >= 0; shard--) {
+                        shardRouter.onShard(shard, () -> {
+                            userRepository.deleteById(userId);
+                            return null;
+                        });
+                    }
+                    // Remove the user and its credit cards from the read model
+                    if (creditCardReadModel != null) {
+                        creditCardReadModel.publishUserDeleted(userId);
+                    }
+                    return null;
+                });
                 // Return 200 OK if the deletion is successful
                 return ResponseEntity.ok("User with ID " + userId + " deleted successfully.");
             } else {
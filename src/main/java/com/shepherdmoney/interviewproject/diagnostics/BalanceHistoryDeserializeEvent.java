@@ -0,0 +1,31 @@
+package com.shepherdmoney.interviewproject.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event around parsing a credit card's balance history JSON with Gson
+ */
+@Name("com.shepherdmoney.BalanceHistoryDeserialize")
+@Label("Balance History Deserialize")
+@Category({ "Shepherd Money", "Balance History" })
+@Description("Gson parse of the balance history JSON")
+@StackTrace(false)
+public class BalanceHistoryDeserializeEvent extends Event {
+
+    @Label("Credit Card Id")
+    public int cardId;
+
+    @Label("History Size")
+    @Description("Records in the balance history")
+    public int historySize;
+
+    @Label("JSON Length")
+    @DataAmount(DataAmount.BYTES)
+    public long jsonLength;
+}
@@ -0,0 +1,31 @@
+package com.shepherdmoney.interviewproject.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event around writing a credit card's balance history to JSON with Gson
+ */
+@Name("com.shepherdmoney.BalanceHistorySerialize")
+@Label("Balance History Serialize")
+@Category({ "Shepherd Money", "Balance History" })
+@Description("Gson write of the balance history JSON")
+@StackTrace(false)
+public class BalanceHistorySerializeEvent extends Event {
+
+    @Label("Credit Card Id")
+    public int cardId;
+
+    @Label("History Size")
+    @Description("Records in the balance history")
+    public int historySize;
+
+    @Label("JSON Length")
+    @DataAmount(DataAmount.BYTES)
+    public long jsonLength;
+}
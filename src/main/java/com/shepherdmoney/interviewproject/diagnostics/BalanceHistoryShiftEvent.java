@@ -0,0 +1,30 @@
+package com.shepherdmoney.interviewproject.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event around shifting the records after a changed date (the tailMap walk)
+ */
+@Name("com.shepherdmoney.BalanceHistoryShift")
+@Label("Balance History Shift")
+@Category({ "Shepherd Money", "Balance History" })
+@Description("Update of the records after a changed date")
+@StackTrace(false)
+public class BalanceHistoryShiftEvent extends Event {
+
+    @Label("Credit Card Id")
+    public int cardId;
+
+    @Label("History Size")
+    @Description("Records in the balance history")
+    public int historySize;
+
+    @Label("Entries Touched")
+    @Description("Records after the changed date whose balance was shifted")
+    public int entriesTouched;
+}
@@ -0,0 +1,32 @@
+package com.shepherdmoney.interviewproject.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event around saving and flushing a credit card, which writes its whole
+ * balance history JSON and the balance history records added since the last flush
+ */
+@Name("com.shepherdmoney.CreditCardSave")
+@Label("Credit Card Save")
+@Category({ "Shepherd Money", "Balance History" })
+@Description("creditCardRepository.saveAndFlush of a card with its balance history")
+@StackTrace(false)
+public class CreditCardSaveEvent extends Event {
+
+    @Label("Credit Card Id")
+    public int cardId;
+
+    @Label("History Size")
+    @Description("Records in the balance history")
+    public int historySize;
+
+    @Label("JSON Length")
+    @DataAmount(DataAmount.BYTES)
+    public long jsonLength;
+}
@@ -5,7 +5,6 @@ import java.time.LocalDate;
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
-import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
 import jakarta.persistence.ManyToOne;
 import lombok.Getter;
@@ -13,6 +12,9 @@ import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.ToString;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 @Entity
 @Getter
 @Setter
@@ -20,8 +22,12 @@ import lombok.ToString;
 @RequiredArgsConstructor
 public class BalanceHistory {
 
+    // Ids come from the sequence of the shard the row is stored on
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "balance_history_seq")
+    @GenericGenerator(name = "balance_history_seq", strategy = "com.shepherdmoney.interviewproject.shard.ShardSequenceGenerator",
+            parameters = { @Parameter(name = "sequence_name", value = "balance_history_seq"),
+                    @Parameter(name = "increment_size", value = "50") })
     private int id;
 
     private LocalDate date;
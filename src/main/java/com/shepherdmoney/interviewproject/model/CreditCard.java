@@ -7,7 +7,13 @@ import lombok.ToString;
 
 import jakarta.persistence.*;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 import java.time.LocalDate;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
@@ -16,16 +22,28 @@ import java.lang.reflect.Type;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.shepherdmoney.interviewproject.diagnostics.BalanceHistoryDeserializeEvent;
+import com.shepherdmoney.interviewproject.diagnostics.BalanceHistorySerializeEvent;
+import com.shepherdmoney.interviewproject.diagnostics.BalanceHistoryShiftEvent;
 
 @Entity
 @Getter
 @Setter
 @ToString
 @RequiredArgsConstructor
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "credit-card")
 public class CreditCard {
 
+    // Balances closer than this are considered equal when comparing histories
+    private static final double BALANCE_TOLERANCE = 1e-6;
+
+    // Ids come from the sequence of the shard the row is stored on
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "credit_card_seq")
+    @GenericGenerator(name = "credit_card_seq", strategy = "com.shepherdmoney.interviewproject.shard.ShardSequenceGenerator",
+            parameters = { @Parameter(name = "sequence_name", value = "credit_card_seq"),
+                    @Parameter(name = "increment_size", value = "50") })
     private int id;
 
     private String issuanceBank;
@@ -75,6 +93,18 @@ public class CreditCard {
 
     // Add a new balance to the history
     public void addBalanceHistory(BalanceHistory balance) {
+        addBalanceHistory(balance, false);
+    }
+
+    // Add a new balance to the history, optionally keeping the history compact
+    /*
+     * In compact mode, points that don't change any balance read are not stored.
+     * Since getBalanceOnDate falls back to the closest previous record, a day whose
+     * balance equals the previous record adds nothing. A later back-dated change
+     * simply inserts a new record and shifts the higher entries, which splits the
+     * run again without needing the dropped points
+     */
+    public void addBalanceHistory(BalanceHistory balance, boolean compact) {
         /*
          * If balance tree is not null, means that this credit card already has previous
          * balance history records
@@ -87,24 +117,48 @@ public class CreditCard {
             balanceHistory = new TreeMap<>();
         }
 
-        // Get update date
-        LocalDate updateDate = balance.getDate();
-        // Get old balance if it exists in the balance history tree
-        double oldBalanceOnDate = getBalanceOnDate(updateDate);
-        // Get new balance on date
-        double newBalance = balance.getBalance();
+        applyBalanceHelper(balance, compact);
 
-        // Calculate the difference between the new balance and the old balance
-        double balanceDifference = newBalance - oldBalanceOnDate;
+        // Update the JSON string (serialize) after adding a new balance
+        serializeBalanceHistoryHelper();
+    }
 
-        // Update balances for entries higher than the current date with the difference
-        updateHigherEntriesHelper(updateDate, balanceDifference);
+    // Rebuild the history from its BalanceHistory records, in the order they were
+    // added
+    /*
+     * Same result as calling addBalanceHistory for every record, but serializes
+     * to JSON once instead of after every record
+     */
+    public void rebuildBalanceHistory(List<BalanceHistory> balances) {
+        balanceHistory = new TreeMap<>();
+        for (BalanceHistory balance : balances) {
+            applyBalanceHelper(balance, false);
+        }
+        serializeBalanceHistoryHelper();
+    }
 
-        // Add/Update Balance for updateDate
-        balanceHistory.put(updateDate.toString(), newBalance);
+    // Check if both credit cards return the same balance on every date
+    /*
+     * The balance only changes on dates stored in either history, so comparing
+     * those dates is enough. Histories stored in compact mode have fewer records
+     * but still match
+     */
+    public boolean hasSameBalances(CreditCard other) {
+        deserializeBalanceHistoryHelper();
+        other.deserializeBalanceHistoryHelper();
+        NavigableMap<String, Double> balances = balanceHistory == null ? new TreeMap<>() : balanceHistory;
+        NavigableMap<String, Double> otherBalances = other.balanceHistory == null ? new TreeMap<>()
+                : other.balanceHistory;
 
-        // Update the JSON string (serialize) after adding a new balance
-        balanceHistoryJson = new Gson().toJson(balanceHistory);
+        TreeMap<String, Double> dates = new TreeMap<>(balances);
+        dates.putAll(otherBalances);
+        for (String date : dates.keySet()) {
+            double difference = floorBalanceHelper(balances, date) - floorBalanceHelper(otherBalances, date);
+            if (Math.abs(difference) > BALANCE_TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
     }
 
     // Remove a balance from the history
@@ -131,7 +185,7 @@ public class CreditCard {
                 updateHigherEntriesHelper(date, balanceToRemove);
 
                 // Update the JSON string (serialize) after removing the balance
-                balanceHistoryJson = new Gson().toJson(balanceHistory);
+                serializeBalanceHistoryHelper();
             } else {
                 System.out.println("Date not in Balance History");
             }
@@ -149,7 +203,9 @@ public class CreditCard {
              * Returning the last entry as if the last date is stored or not, last entry
              * will always have balance of current date
              */
-            return balanceHistory.lastEntry().getValue();
+            Map.Entry<String, Double> lastEntry = balanceHistory.lastEntry();
+            // A compacted history can be empty if every balance was zero
+            return lastEntry == null ? 0.0 : lastEntry.getValue();
         }
         return 0.0; // Return 0 if no balance history exists
     }
@@ -181,21 +237,114 @@ public class CreditCard {
         }
     }
 
+    // Check if storing this balance would change any balance read
+    /*
+     * A balance is redundant if it equals the balance already in effect on that
+     * date, either the record for that date or the closest previous record
+     */
+    public boolean isRedundantBalance(LocalDate date, double balance) {
+        return getBalanceOnDate(date) == balance;
+    }
+
     // Deserialize the JSON string to a TreeMap
     private void deserializeBalanceHistoryHelper() {
         if (balanceHistoryJson != null && !balanceHistoryJson.isEmpty()) {
+            // Timed for JFR, free when no recording enables the event
+            BalanceHistoryDeserializeEvent event = new BalanceHistoryDeserializeEvent();
+            event.begin();
             Type type = new TypeToken<TreeMap<String, Double>>() {
             }.getType();
             balanceHistory = new Gson().fromJson(balanceHistoryJson, type);
+            event.end();
+            if (event.shouldCommit()) {
+                event.cardId = id;
+                event.historySize = balanceHistory.size();
+                event.jsonLength = balanceHistoryJson.length();
+                event.commit();
+            }
+        }
+    }
+
+    // Serialize the TreeMap to the JSON string
+    private void serializeBalanceHistoryHelper() {
+        BalanceHistorySerializeEvent event = new BalanceHistorySerializeEvent();
+        event.begin();
+        balanceHistoryJson = new Gson().toJson(balanceHistory);
+        event.end();
+        if (event.shouldCommit()) {
+            event.cardId = id;
+            event.historySize = balanceHistory.size();
+            event.jsonLength = balanceHistoryJson.length();
+            event.commit();
+        }
+    }
+
+    // Add a balance to the in-memory history, shifting the later records
+    private void applyBalanceHelper(BalanceHistory balance, boolean compact) {
+        // Get update date
+        LocalDate updateDate = balance.getDate();
+        // Get old balance if it exists in the balance history tree
+        double oldBalanceOnDate = floorBalanceHelper(balanceHistory, updateDate.toString());
+        // Get new balance on date
+        double newBalance = balance.getBalance();
+
+        // Calculate the difference between the new balance and the old balance
+        double balanceDifference = newBalance - oldBalanceOnDate;
+
+        // Update balances for entries higher than the current date with the difference
+        updateHigherEntriesHelper(updateDate, balanceDifference);
+
+        // Add/Update Balance for updateDate
+        balanceHistory.put(updateDate.toString(), newBalance);
+
+        // Drop records around updateDate which became redundant
+        if (compact) {
+            compactAroundDateHelper(updateDate);
         }
     }
 
+    // Balance in effect on a date (closest previous record) of an in-memory history
+    private static double floorBalanceHelper(NavigableMap<String, Double> history, String date) {
+        Map.Entry<String, Double> entry = history.floorEntry(date);
+        return entry == null ? 0.0 : entry.getValue();
+    }
+
     // Update balances for entries higher than the updateAfterDate date with the
     // difference
     private void updateHigherEntriesHelper(LocalDate updateAfterDate, double balanceDifference) {
+        BalanceHistoryShiftEvent event = new BalanceHistoryShiftEvent();
+        event.begin();
+        int entriesTouched = 0;
         NavigableMap<String, Double> higherEntries = balanceHistory.tailMap(updateAfterDate.toString(), false);
         for (Map.Entry<String, Double> entry : higherEntries.entrySet()) {
             entry.setValue(entry.getValue() + balanceDifference);
+            entriesTouched++;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.cardId = id;
+            event.historySize = balanceHistory.size();
+            event.entriesTouched = entriesTouched;
+            event.commit();
+        }
+    }
+
+    // Remove records next to the compactDate record that repeat the previous balance
+    private void compactAroundDateHelper(LocalDate compactDate) {
+        String compactDateStr = compactDate.toString();
+        double balanceOnDate = balanceHistory.get(compactDateStr);
+
+        // The next record is redundant if it carries the same balance forward
+        Map.Entry<String, Double> nextEntry = balanceHistory.higherEntry(compactDateStr);
+        if (nextEntry != null && nextEntry.getValue() == balanceOnDate) {
+            balanceHistory.remove(nextEntry.getKey());
+        }
+
+        // The record itself is redundant if it repeats the closest previous balance
+        Map.Entry<String, Double> previousEntry = balanceHistory.lowerEntry(compactDateStr);
+        double previousBalance = previousEntry == null ? 0.0 : previousEntry.getValue();
+        if (previousBalance == balanceOnDate) {
+            balanceHistory.remove(compactDateStr);
         }
     }
 }
@@ -8,16 +8,27 @@ import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.ToString;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 @Entity
 @Getter
 @Setter
 @ToString
 @RequiredArgsConstructor
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "user")
 @Table(name = "MyUser")
 public class User {
 
+    // Ids come from the sequence of the shard the row is stored on
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "my_user_seq")
+    @GenericGenerator(name = "my_user_seq", strategy = "com.shepherdmoney.interviewproject.shard.ShardSequenceGenerator",
+            parameters = { @Parameter(name = "sequence_name", value = "my_user_seq"),
+                    @Parameter(name = "increment_size", value = "50") })
     private int id;
 
     private String name;
@@ -25,6 +36,9 @@ public class User {
     private String email;
 
     // Storing user's credit cards as a list of credit cards. We can directly query credit cards by user
+    // Cached with the user, evicted when a credit card's owner changes
+    // (hibernate.cache.auto_evict_collection_cache)
     @OneToMany(mappedBy = "owner", cascade = CascadeType.ALL)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "user-credit-cards")
     private List<CreditCard> creditCards;
 }
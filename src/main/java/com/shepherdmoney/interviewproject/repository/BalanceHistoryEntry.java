@@ -0,0 +1,9 @@
+package com.shepherdmoney.interviewproject.repository;
+
+import java.time.LocalDate;
+
+/**
+ * A BalanceHistory record, read without loading its credit card
+ */
+public record BalanceHistoryEntry(int creditCardId, LocalDate date, double balance) {
+}
@@ -1,7 +1,13 @@
 package com.shepherdmoney.interviewproject.repository;
 
 import com.shepherdmoney.interviewproject.model.BalanceHistory;
+
+import java.util.Collection;
+import java.util.List;
+
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -9,4 +15,26 @@ import org.springframework.stereotype.Repository;
  */
 @Repository("BalanceHistoryRepo")
 public interface BalanceHistoryRepository extends JpaRepository<BalanceHistory, Integer> {
+
+    // Balance history records of some credit cards, in the order they were added
+    // Ids of a shard come from the shard's own sequence (ShardSequenceGenerator),
+    // so they increase in the order records are added on that shard
+    @Query("SELECT new com.shepherdmoney.interviewproject.repository.BalanceHistoryEntry("
+            + "b.creditCard.id, b.date, b.balance) FROM BalanceHistory b "
+            + "WHERE b.creditCard.id IN :creditCardIds ORDER BY b.id")
+    List<BalanceHistoryEntry> findEntriesByCreditCardIds(@Param("creditCardIds") Collection<Integer> creditCardIds);
+
+    // Number of records on the current shard with an id outside an id range
+    // Records written before ids were generated per shard can have another
+    // shard's ids, their id order isn't the order they were added
+    @Query("SELECT COUNT(b) FROM BalanceHistory b WHERE b.id < :firstId OR b.id > :lastId")
+    long countOutsideIdRange(@Param("firstId") int firstId, @Param("lastId") int lastId);
+
+    // Highest record id of an id range on the current shard, null if there is none
+    @Query("SELECT MAX(b.id) FROM BalanceHistory b WHERE b.id BETWEEN :firstId AND :lastId")
+    Integer findMaxIdBetween(@Param("firstId") int firstId, @Param("lastId") int lastId);
+
+    // Credit cards with records of an id range added after a record id
+    @Query("SELECT DISTINCT b.creditCard.id FROM BalanceHistory b WHERE b.id > :afterId AND b.id <= :lastId")
+    List<Integer> findCreditCardIdsWithEntriesBetween(@Param("afterId") int afterId, @Param("lastId") int lastId);
 }
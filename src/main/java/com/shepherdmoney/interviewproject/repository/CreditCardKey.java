@@ -0,0 +1,7 @@
+package com.shepherdmoney.interviewproject.repository;
+
+/**
+ * Id and number of a credit card, read without its balance history
+ */
+public record CreditCardKey(int id, String number) {
+}
@@ -0,0 +1,9 @@
+package com.shepherdmoney.interviewproject.repository;
+
+/**
+ * Owner, issuance bank and stored balance history of a credit card, read
+ * without loading the entity
+ */
+public record CreditCardOwnerSnapshot(int id, int ownerId, String number, String issuanceBank,
+        String balanceHistoryJson) {
+}
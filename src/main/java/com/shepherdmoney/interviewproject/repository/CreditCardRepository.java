@@ -2,10 +2,22 @@ package com.shepherdmoney.interviewproject.repository;
 
 import com.shepherdmoney.interviewproject.model.CreditCard;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
+import jakarta.persistence.QueryHint;
+
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 /**
  * Crud repository to store credit cards
@@ -13,5 +25,55 @@ import org.springframework.stereotype.Repository;
 @Repository("CreditCardRepo")
 public interface CreditCardRepository extends JpaRepository<CreditCard, Integer> {
 
+    // Cached in the query cache, invalidated whenever the credit card table changes
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"))
     Optional<CreditCard> findByNumber(String number);
+
+    // Credit cards of a user stored on the current shard
+    List<CreditCard> findByOwnerId(int ownerId);
+
+    // Next page of stored balance histories after a card id (keyset paging)
+    @Query("SELECT new com.shepherdmoney.interviewproject.repository.CreditCardSnapshot("
+            + "c.id, c.number, c.balanceHistoryJson) FROM CreditCard c WHERE c.id > :afterId ORDER BY c.id")
+    List<CreditCardSnapshot> findSnapshotsAfterId(@Param("afterId") int afterId, Pageable pageable);
+
+    // Next page of cards with their owner and issuance bank after a card id
+    // (keyset paging)
+    @Query("SELECT new com.shepherdmoney.interviewproject.repository.CreditCardOwnerSnapshot("
+            + "c.id, c.owner.id, c.number, c.issuanceBank, c.balanceHistoryJson) FROM CreditCard c "
+            + "WHERE c.id > :afterId ORDER BY c.id")
+    List<CreditCardOwnerSnapshot> findOwnerSnapshotsAfterId(@Param("afterId") int afterId, Pageable pageable);
+
+    // Stored balance histories of some credit cards
+    @Query("SELECT new com.shepherdmoney.interviewproject.repository.CreditCardSnapshot("
+            + "c.id, c.number, c.balanceHistoryJson) FROM CreditCard c WHERE c.id IN :ids")
+    List<CreditCardSnapshot> findSnapshotsByIds(@Param("ids") Collection<Integer> ids);
+
+    // Next page of card ids and numbers after a card id (keyset paging), without
+    // reading the balance histories
+    @Query("SELECT new com.shepherdmoney.interviewproject.repository.CreditCardKey(c.id, c.number) "
+            + "FROM CreditCard c WHERE c.id > :afterId ORDER BY c.id")
+    List<CreditCardKey> findKeysAfterId(@Param("afterId") int afterId, Pageable pageable);
+
+    // Overwrite the stored balance history of a credit card if it is still the
+    // expected one (a missing history is expected as ""), 0 if it changed since
+    @Modifying
+    @Transactional
+    @Query("UPDATE CreditCard c SET c.balanceHistoryJson = :balanceHistoryJson "
+            + "WHERE c.id = :id AND COALESCE(c.balanceHistoryJson, '') = :expectedJson")
+    int updateBalanceHistoryJsonIfUnchanged(@Param("id") int id, @Param("expectedJson") String expectedJson,
+            @Param("balanceHistoryJson") String balanceHistoryJson);
+
+    // Stored balance history of a credit card as a stream, for exports
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "100"))
+    @Query("SELECT new com.shepherdmoney.interviewproject.repository.CreditCardSnapshot("
+            + "c.id, c.number, c.balanceHistoryJson) FROM CreditCard c WHERE c.number = :number")
+    Stream<CreditCardSnapshot> streamSnapshotsByNumber(@Param("number") String number);
+
+    // Stored balance histories of a user's credit cards on the current shard, read
+    // from a cursor instead of a list
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "100"))
+    @Query("SELECT new com.shepherdmoney.interviewproject.repository.CreditCardSnapshot("
+            + "c.id, c.number, c.balanceHistoryJson) FROM CreditCard c WHERE c.owner.id = :ownerId ORDER BY c.id")
+    Stream<CreditCardSnapshot> streamSnapshotsByOwnerId(@Param("ownerId") int ownerId);
 }
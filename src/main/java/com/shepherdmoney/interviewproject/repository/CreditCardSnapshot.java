@@ -0,0 +1,7 @@
+package com.shepherdmoney.interviewproject.repository;
+
+/**
+ * Stored balance history of a credit card, read without loading the entity
+ */
+public record CreditCardSnapshot(int id, String number, String balanceHistoryJson) {
+}
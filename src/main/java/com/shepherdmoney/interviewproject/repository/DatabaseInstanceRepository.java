@@ -0,0 +1,31 @@
+package com.shepherdmoney.interviewproject.repository;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Identity of the database behind the current shard: its URL plus an id
+ * generated once per database, so a file derived from a database can tell
+ * whether it was written against this one
+ */
+@Repository
+public class DatabaseInstanceRepository {
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    // URL and instance id of the current shard's database, the instance id is
+    // created by the first call on a database
+    public String findIdentity() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS database_instance (instance_id VARCHAR(36) NOT NULL)");
+        jdbcTemplate.update("INSERT INTO database_instance (instance_id) SELECT RANDOM_UUID() "
+                + "WHERE NOT EXISTS (SELECT 1 FROM database_instance)");
+        String instanceId = jdbcTemplate.queryForObject("SELECT MIN(instance_id) FROM database_instance",
+                String.class);
+        String url = jdbcTemplate.execute((ConnectionCallback<String>) connection -> connection.getMetaData()
+                .getURL());
+        return url + "#" + instanceId;
+    }
+}
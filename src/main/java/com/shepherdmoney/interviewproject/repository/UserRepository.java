@@ -1,7 +1,12 @@
 package com.shepherdmoney.interviewproject.repository;
 
+import java.util.List;
+
 import com.shepherdmoney.interviewproject.model.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -9,4 +14,8 @@ import org.springframework.stereotype.Repository;
  */
 @Repository("UserRepo")
 public interface UserRepository extends JpaRepository<User, Integer> {
+
+    // Next page of user ids after a user id (keyset paging)
+    @Query("SELECT u.id FROM User u WHERE u.id > :afterId ORDER BY u.id")
+    List<Integer> findIdsAfterId(@Param("afterId") int afterId, Pageable pageable);
 }
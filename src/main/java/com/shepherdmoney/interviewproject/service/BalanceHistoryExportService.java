@@ -0,0 +1,135 @@
+package com.shepherdmoney.interviewproject.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
+import com.shepherdmoney.interviewproject.repository.CreditCardSnapshot;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+import com.shepherdmoney.interviewproject.vo.response.BalanceHistoryRowView;
+
+/**
+ * Writes balance histories row by row as NDJSON or CSV, reading credit cards
+ * from a database cursor so memory doesn't grow with the size of the export
+ */
+@Service
+public class BalanceHistoryExportService {
+
+    public enum Format {
+        NDJSON, CSV
+    }
+
+    // Rows written between flushes, so the client receives data while exporting
+    private static final int FLUSH_EVERY_ROWS = 1000;
+
+    private final Gson gson = new Gson();
+
+    @Autowired
+    private CreditCardRepository creditCardRepository;
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    // Transactions are started explicitly (no @Transactional) so the shard is
+    // chosen before the transaction takes its connection
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    // Write the balance history of one credit card between from and to (inclusive,
+    // either may be null)
+    public void exportCreditCard(String creditCardNumber, LocalDate from, LocalDate to, Format format,
+            Writer writer) throws IOException {
+        writeHeaderHelper(format, writer);
+        shardRouter.onShardOf(creditCardNumber, () -> exportHelper(
+                () -> creditCardRepository.streamSnapshotsByNumber(creditCardNumber), from, to, format, writer));
+        writer.flush();
+    }
+
+    // Write the balance history of every credit card of a user, one shard after
+    // the other
+    public void exportUser(int userId, LocalDate from, LocalDate to, Format format, Writer writer)
+            throws IOException {
+        writeHeaderHelper(format, writer);
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            shardRouter.onShard(shard, () -> exportHelper(
+                    () -> creditCardRepository.streamSnapshotsByOwnerId(userId), from, to, format, writer));
+        }
+        writer.flush();
+    }
+
+    // The stream's cursor needs an open transaction while it is read
+    private Void exportHelper(Supplier<Stream<CreditCardSnapshot>> query, LocalDate from,
+            LocalDate to, Format format, Writer writer) {
+        TransactionTemplate readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+        return readOnlyTransaction.execute(status -> {
+            try (Stream<CreditCardSnapshot> snapshots = query.get()) {
+                snapshots.forEach(snapshot -> writeCardHelper(snapshot, from, to, format, writer));
+            }
+            return null;
+        });
+    }
+
+    // Only one credit card's history is held in memory at a time
+    private void writeCardHelper(CreditCardSnapshot snapshot, LocalDate from, LocalDate to, Format format,
+            Writer writer) {
+        NavigableMap<String, Double> balanceHistory = parseBalanceHistoryHelper(snapshot.balanceHistoryJson());
+        // ISO dates sort chronologically as strings
+        if (from != null) {
+            balanceHistory = balanceHistory.tailMap(from.toString(), true);
+        }
+        if (to != null) {
+            balanceHistory = balanceHistory.headMap(to.toString(), true);
+        }
+
+        try {
+            int rows = 0;
+            for (Map.Entry<String, Double> entry : balanceHistory.entrySet()) {
+                if (format == Format.CSV) {
+                    writer.write(snapshot.number() + "," + entry.getKey() + "," + entry.getValue() + "\n");
+                } else {
+                    gson.toJson(new BalanceHistoryRowView(snapshot.number(), entry.getKey(), entry.getValue()),
+                            writer);
+                    writer.write('\n');
+                }
+                if (++rows % FLUSH_EVERY_ROWS == 0) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+        } catch (IOException e) {
+            // Client went away, stop reading the cursor
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeHeaderHelper(Format format, Writer writer) throws IOException {
+        if (format == Format.CSV) {
+            writer.write("credit_card_number,date,balance\n");
+        }
+    }
+
+    private NavigableMap<String, Double> parseBalanceHistoryHelper(String balanceHistoryJson) {
+        if (balanceHistoryJson == null || balanceHistoryJson.isEmpty()) {
+            return new TreeMap<>();
+        }
+        Type type = new TypeToken<TreeMap<String, Double>>() {
+        }.getType();
+        return gson.fromJson(balanceHistoryJson, type);
+    }
+}
@@ -0,0 +1,74 @@
+package com.shepherdmoney.interviewproject.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+
+import com.shepherdmoney.interviewproject.model.BalanceHistory;
+import com.shepherdmoney.interviewproject.model.CreditCard;
+import com.shepherdmoney.interviewproject.repository.CreditCardSnapshot;
+
+/**
+ * Rebuilds the balance history of a range of credit cards from their
+ * BalanceHistory records and returns the cards whose stored history differs
+ */
+class BalanceRecomputeTask extends RecursiveTask<List<BalanceRecomputeTask.Mismatch>> {
+
+    private static final long serialVersionUID = 1L;
+
+    // A credit card whose stored history differs from the rebuilt one
+    record Mismatch(CreditCardSnapshot snapshot, CreditCard rebuiltCard) {
+    }
+
+    // Ranges of at most this many cards are rebuilt without splitting further
+    private static final int SEQUENTIAL_THRESHOLD = 16;
+
+    private final List<CreditCardSnapshot> snapshots;
+    private final Map<Integer, List<BalanceHistory>> balancesOfCard;
+    private final int from;
+    private final int to;
+
+    BalanceRecomputeTask(List<CreditCardSnapshot> snapshots, Map<Integer, List<BalanceHistory>> balancesOfCard) {
+        this(snapshots, balancesOfCard, 0, snapshots.size());
+    }
+
+    private BalanceRecomputeTask(List<CreditCardSnapshot> snapshots,
+            Map<Integer, List<BalanceHistory>> balancesOfCard, int from, int to) {
+        this.snapshots = snapshots;
+        this.balancesOfCard = balancesOfCard;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected List<Mismatch> compute() {
+        if (to - from <= SEQUENTIAL_THRESHOLD) {
+            List<Mismatch> mismatches = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                Mismatch mismatch = recomputeHelper(snapshots.get(i));
+                if (mismatch != null) {
+                    mismatches.add(mismatch);
+                }
+            }
+            return mismatches;
+        }
+
+        // Split the range in halves, the left half can be stolen by another worker
+        int middle = (from + to) >>> 1;
+        BalanceRecomputeTask left = new BalanceRecomputeTask(snapshots, balancesOfCard, from, middle);
+        left.fork();
+        List<Mismatch> mismatches = new BalanceRecomputeTask(snapshots, balancesOfCard, middle, to).compute();
+        mismatches.addAll(0, left.join());
+        return mismatches;
+    }
+
+    private Mismatch recomputeHelper(CreditCardSnapshot snapshot) {
+        CreditCard storedCard = new CreditCard();
+        storedCard.setBalanceHistoryJson(snapshot.balanceHistoryJson());
+
+        CreditCard rebuiltCard = new CreditCard();
+        rebuiltCard.rebuildBalanceHistory(balancesOfCard.getOrDefault(snapshot.id(), List.of()));
+        return rebuiltCard.hasSameBalances(storedCard) ? null : new Mismatch(snapshot, rebuiltCard);
+    }
+}
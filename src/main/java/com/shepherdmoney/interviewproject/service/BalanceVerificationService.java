@@ -0,0 +1,270 @@
+package com.shepherdmoney.interviewproject.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import com.shepherdmoney.interviewproject.model.BalanceHistory;
+import com.shepherdmoney.interviewproject.repository.BalanceHistoryEntry;
+import com.shepherdmoney.interviewproject.repository.BalanceHistoryRepository;
+import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
+import com.shepherdmoney.interviewproject.repository.CreditCardSnapshot;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+import com.shepherdmoney.interviewproject.shard.ShardSchemaInitializer;
+import com.shepherdmoney.interviewproject.store.BalanceIndex;
+import com.shepherdmoney.interviewproject.store.CreditCardLocks;
+import com.shepherdmoney.interviewproject.store.CreditCardReadModel;
+import com.shepherdmoney.interviewproject.store.OffHeapBalanceStore;
+import com.shepherdmoney.interviewproject.vo.response.BalanceVerificationReportView;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Background job which rebuilds every credit card's balance history from its
+ * BalanceHistory records and reports (optionally repairs) the cards whose
+ * stored balanceHistoryJson has drifted
+ */
+@Service
+public class BalanceVerificationService {
+
+    private static final Logger log = LoggerFactory.getLogger(BalanceVerificationService.class);
+
+    // Only the first mismatched card numbers are kept in the report
+    private static final int MAX_REPORTED_CARDS = 100;
+
+    @Autowired
+    private CreditCardRepository creditCardRepository;
+
+    @Autowired
+    private BalanceHistoryRepository balanceHistoryRepository;
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    @Autowired
+    private CreditCardLocks creditCardLocks;
+
+    // Derived stores are repaired too when enabled
+    @Autowired(required = false)
+    private OffHeapBalanceStore offHeapBalanceStore;
+
+    @Autowired(required = false)
+    private CreditCardReadModel creditCardReadModel;
+
+    @Autowired(required = false)
+    private BalanceIndex balanceIndex;
+
+    private final int chunkSize;
+
+    // Rebuilds run on every core, reading from the database stays on the job thread
+    private final ForkJoinPool recomputePool;
+    // Runs outside of a request, so no open-in-view session collects the chunks
+    private final ExecutorService jobRunner = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "balance-verification");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Progress of the current (or last) run
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong cardsChecked = new AtomicLong();
+    private final AtomicLong mismatchedCards = new AtomicLong();
+    private final AtomicLong repairedCards = new AtomicLong();
+    // Mismatched cards written to since they were read, left for the next run
+    private final AtomicLong skippedRepairs = new AtomicLong();
+    private final List<String> mismatchedCardNumbers = new ArrayList<>();
+    private volatile boolean repair;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private volatile String error;
+
+    public BalanceVerificationService(@Value("${verification.chunk-size:500}") int chunkSize,
+            @Value("${verification.parallelism:0}") int parallelism) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.chunkSize = chunkSize;
+        this.recomputePool = new ForkJoinPool(
+                parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+    // Start a run in the background, false if a run is already in progress
+    public boolean start(boolean repair) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        this.repair = repair;
+        cardsChecked.set(0);
+        mismatchedCards.set(0);
+        repairedCards.set(0);
+        skippedRepairs.set(0);
+        synchronized (mismatchedCardNumbers) {
+            mismatchedCardNumbers.clear();
+        }
+        startedAt = Instant.now();
+        finishedAt = null;
+        error = null;
+
+        jobRunner.execute(() -> {
+            try {
+                verifyAll(repair);
+            } catch (Exception e) {
+                log.error("Balance verification failed", e);
+                error = e.toString();
+            } finally {
+                finishedAt = Instant.now();
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    // Repair replays the balance records in id order, which is the order they
+    // were added only if every record on a shard has an id of the shard's own
+    // range. Sharded databases with records written before ids were generated
+    // per shard can't be repaired
+    public boolean isRepairSafe() {
+        if (!shardRouter.isSharded()) {
+            return true;
+        }
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            int firstId = shard << ShardSchemaInitializer.SHARD_ID_RANGE_BITS;
+            int lastId = (int) (((long) (shard + 1) << ShardSchemaInitializer.SHARD_ID_RANGE_BITS) - 1);
+            long misplacedRecords = shardRouter.onShard(shard,
+                    () -> balanceHistoryRepository.countOutsideIdRange(firstId, lastId));
+            if (misplacedRecords > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Report of the current (or last) run, empty if the job never ran
+    public Optional<BalanceVerificationReportView> getReport() {
+        Instant started = startedAt;
+        if (started == null) {
+            return Optional.empty();
+        }
+        Instant finished = finishedAt;
+        long durationMillis = Duration.between(started, finished == null ? Instant.now() : finished).toMillis();
+        long checked = cardsChecked.get();
+        List<String> reportedCardNumbers;
+        synchronized (mismatchedCardNumbers) {
+            reportedCardNumbers = List.copyOf(mismatchedCardNumbers);
+        }
+        return Optional.of(new BalanceVerificationReportView(finished == null, repair, started.toString(),
+                durationMillis, checked, durationMillis == 0 ? 0.0 : checked * 1000.0 / durationMillis,
+                mismatchedCards.get(), repairedCards.get(), skippedRepairs.get(), reportedCardNumbers, error));
+    }
+
+    @PreDestroy
+    public void close() {
+        jobRunner.shutdownNow();
+        recomputePool.shutdownNow();
+    }
+
+    // Verify every shard, one after the other
+    void verifyAll(boolean repair) {
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            shardRouter.onShard(shard, () -> {
+                verifyShardHelper(repair);
+                return null;
+            });
+        }
+        // Repairs add no balance records, so a restart wouldn't replay them
+        if (repairedCards.get() > 0 && balanceIndex != null) {
+            balanceIndex.checkpoint();
+        }
+    }
+
+    // Stream the credit cards of the current shard in chunks ordered by id
+    /*
+     * At most two chunks are held at a time: the one being rebuilt on the
+     * fork-join pool and the next one being read from the database
+     */
+    private void verifyShardHelper(boolean repair) {
+        List<CreditCardSnapshot> chunk = creditCardRepository.findSnapshotsAfterId(0, PageRequest.of(0, chunkSize));
+        while (!chunk.isEmpty()) {
+            ForkJoinTask<List<BalanceRecomputeTask.Mismatch>> rebuild = recomputePool
+                    .submit(new BalanceRecomputeTask(chunk, balancesOfCardsHelper(chunk)));
+
+            // Read the next chunk while this one is being rebuilt
+            int lastId = chunk.get(chunk.size() - 1).id();
+            List<CreditCardSnapshot> nextChunk = chunk.size() < chunkSize ? List.of()
+                    : creditCardRepository.findSnapshotsAfterId(lastId, PageRequest.of(0, chunkSize));
+
+            for (BalanceRecomputeTask.Mismatch mismatch : rebuild.join()) {
+                mismatchedCards.incrementAndGet();
+                synchronized (mismatchedCardNumbers) {
+                    if (mismatchedCardNumbers.size() < MAX_REPORTED_CARDS) {
+                        mismatchedCardNumbers.add(mismatch.snapshot().number());
+                    }
+                }
+                if (repair) {
+                    repairHelper(mismatch);
+                }
+            }
+            cardsChecked.addAndGet(chunk.size());
+            chunk = nextChunk;
+        }
+    }
+
+    // Balance history records of a chunk of credit cards, grouped by card id
+    private Map<Integer, List<BalanceHistory>> balancesOfCardsHelper(List<CreditCardSnapshot> chunk) {
+        List<Integer> creditCardIds = chunk.stream().map(CreditCardSnapshot::id).toList();
+        Map<Integer, List<BalanceHistory>> balancesOfCard = new HashMap<>();
+        for (BalanceHistoryEntry entry : balanceHistoryRepository.findEntriesByCreditCardIds(creditCardIds)) {
+            balancesOfCard.computeIfAbsent(entry.creditCardId(), id -> new ArrayList<>())
+                    .add(new BalanceHistory(entry.date(), entry.balance()));
+        }
+        return balancesOfCard;
+    }
+
+    // Store the rebuilt history, the BalanceHistory records are the source of truth
+    // Under the card's lock, so it is published in order with the card's updates
+    // Only if the stored history is still the one that was compared, a card
+    // updated since is skipped rather than overwritten with an older history
+    private void repairHelper(BalanceRecomputeTask.Mismatch mismatch) {
+        CreditCardSnapshot snapshot = mismatch.snapshot();
+        boolean repaired = creditCardLocks.withLocks(List.of(snapshot.number()), () -> {
+            String expectedJson = snapshot.balanceHistoryJson() == null ? "" : snapshot.balanceHistoryJson();
+            if (creditCardRepository.updateBalanceHistoryJsonIfUnchanged(snapshot.id(), expectedJson,
+                    mismatch.rebuiltCard().getBalanceHistoryJson()) == 0) {
+                return false;
+            }
+            if (offHeapBalanceStore != null) {
+                offHeapBalanceStore.put(snapshot.number(), mismatch.rebuiltCard().getBalanceHistory());
+            }
+            if (creditCardReadModel != null) {
+                creditCardReadModel.publishBalanceHistoryChanged(snapshot.number(),
+                        mismatch.rebuiltCard().getBalanceHistory());
+            }
+            if (balanceIndex != null) {
+                balanceIndex.update(snapshot.number(), mismatch.rebuiltCard().getBalanceHistory());
+            }
+            return true;
+        });
+        if (repaired) {
+            repairedCards.incrementAndGet();
+        } else {
+            skippedRepairs.incrementAndGet();
+        }
+    }
+}
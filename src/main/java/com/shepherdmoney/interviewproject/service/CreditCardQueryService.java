@@ -0,0 +1,85 @@
+package com.shepherdmoney.interviewproject.service;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.shepherdmoney.interviewproject.model.CreditCard;
+import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
+import com.shepherdmoney.interviewproject.repository.UserRepository;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+import com.shepherdmoney.interviewproject.store.CreditCardReadModel;
+import com.shepherdmoney.interviewproject.vo.response.CreditCardView;
+
+/**
+ * Read-only credit card lookups which can run outside of a request thread
+ */
+@Service
+public class CreditCardQueryService {
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private CreditCardRepository creditCardRepository;
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    // Optional read model (readmodel.enabled), used before the database
+    @Autowired(required = false)
+    private CreditCardReadModel creditCardReadModel;
+
+    // Transactions are started explicitly (no @Transactional) so the shard is
+    // chosen before the transaction takes its connection
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    // Get all credit cards of a user, empty if the user does not exist
+    public Optional<List<CreditCardView>> findCreditCardViewsOfUser(int userId) {
+        if (creditCardReadModel != null) {
+            Optional<List<CreditCardView>> creditCardViews = creditCardReadModel.findCreditCardViewsOfUser(userId);
+            if (creditCardViews.isPresent()) {
+                return creditCardViews;
+            }
+        }
+
+        if (shardRouter.isSharded()) {
+            // The user's cards are spread over the shards, collect them from every shard
+            if (!userRepository.existsById(userId)) {
+                return Optional.empty();
+            }
+            return Optional.of(toViews(shardRouter.fanOut(() -> creditCardRepository.findByOwnerId(userId))));
+        }
+
+        // Runs in its own transaction as lazy collections can't rely on open-in-view
+        // when called from an async thread
+        TransactionTemplate readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+        return readOnlyTransaction.execute(status -> userRepository.findById(userId)
+                .map(user -> toViews(user.getCreditCards())));
+    }
+
+    // Get the owner's user id of a credit card, empty if the card does not exist
+    public Optional<Integer> findUserIdOfCreditCard(String creditCardNumber) {
+        if (creditCardReadModel != null) {
+            Optional<Integer> userId = creditCardReadModel.findUserIdOfCreditCard(creditCardNumber);
+            if (userId.isPresent()) {
+                return userId;
+            }
+        }
+
+        return shardRouter.onShardOf(creditCardNumber, () -> creditCardRepository.findByNumber(creditCardNumber))
+                .map(creditCard -> creditCard.getOwner().getId());
+    }
+
+    private List<CreditCardView> toViews(List<CreditCard> creditCards) {
+        return creditCards.stream()
+                .map(creditCard -> new CreditCardView(creditCard.getIssuanceBank(), creditCard.getNumber()))
+                .toList();
+    }
+}
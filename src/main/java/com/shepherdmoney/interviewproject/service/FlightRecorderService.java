@@ -0,0 +1,168 @@
+package com.shepherdmoney.interviewproject.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.shepherdmoney.interviewproject.diagnostics.BalanceHistoryDeserializeEvent;
+import com.shepherdmoney.interviewproject.diagnostics.BalanceHistorySerializeEvent;
+import com.shepherdmoney.interviewproject.diagnostics.BalanceHistoryShiftEvent;
+import com.shepherdmoney.interviewproject.diagnostics.CreditCardSaveEvent;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.Configuration;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * JDK Flight Recorder recordings of the balance history events: an optional
+ * always-on recording of the recent past, and on-demand profiles
+ */
+@Service
+public class FlightRecorderService {
+
+    private static final List<Class<? extends Event>> BALANCE_HISTORY_EVENTS = List.of(
+            BalanceHistoryDeserializeEvent.class, BalanceHistorySerializeEvent.class,
+            BalanceHistoryShiftEvent.class, CreditCardSaveEvent.class);
+
+    // Largest on-demand profile kept on disk, older chunks are dropped past it
+    private static final long MAX_PROFILE_SIZE = 256L * 1024 * 1024;
+
+    private final boolean continuous;
+    private final Duration continuousMaxAge;
+    private final Duration continuousThreshold;
+
+    // JDK "default" settings (low overhead), keeping the last continuousMaxAge
+    private Recording continuousRecording;
+    // Only one profile at a time
+    private final AtomicBoolean profiling = new AtomicBoolean();
+    // Stops profiles when their duration is over, no request thread waits for it
+    private final ScheduledExecutorService profileStopper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jfr-profile-stopper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public FlightRecorderService(@Value("${diagnostics.jfr.continuous:false}") boolean continuous,
+            @Value("${diagnostics.jfr.continuous-max-age:PT1H}") Duration continuousMaxAge,
+            @Value("${diagnostics.jfr.continuous-threshold:PT0.001S}") Duration continuousThreshold) {
+        this.continuous = continuous;
+        this.continuousMaxAge = continuousMaxAge;
+        this.continuousThreshold = continuousThreshold;
+    }
+
+    @PostConstruct
+    public void startContinuousRecording() throws IOException, ParseException {
+        if (!continuous || !FlightRecorder.isAvailable()) {
+            return;
+        }
+        Recording recording = new Recording(Configuration.getConfiguration("default"));
+        recording.setName("balance-history-continuous");
+        recording.setToDisk(true);
+        recording.setMaxAge(continuousMaxAge);
+        // Every update emits a few events, only slow ones are kept
+        for (Class<? extends Event> eventClass : BALANCE_HISTORY_EVENTS) {
+            recording.enable(eventClass).withThreshold(continuousThreshold);
+        }
+        recording.start();
+        continuousRecording = recording;
+    }
+
+    public boolean isContinuousRecording() {
+        return continuousRecording != null;
+    }
+
+    // Dump the continuous recording (the last continuousMaxAge) to a temporary
+    // file, empty if no continuous recording is running
+    public Optional<Path> dumpContinuousRecording() throws IOException {
+        if (continuousRecording == null) {
+            return Optional.empty();
+        }
+        Path file = Files.createTempFile("balance-history-continuous-", ".jfr");
+        continuousRecording.dump(file);
+        return Optional.of(file);
+    }
+
+    // Start a profile: JDK "profile" settings (CPU samples, allocation samples,
+    // lock contention) and every balance history event, empty if a profile is
+    // already running
+    // The profile is stopped and dumped to a temporary file after duration,
+    // cancelling the returned future stops it early and discards it
+    public Optional<CompletableFuture<Path>> startProfile(Duration duration) throws IOException, ParseException {
+        if (!FlightRecorder.isAvailable() || !profiling.compareAndSet(false, true)) {
+            return Optional.empty();
+        }
+        try {
+            Recording recording = new Recording(Configuration.getConfiguration("profile"));
+            recording.setName("balance-history-profile");
+            recording.setToDisk(true);
+            recording.setMaxSize(MAX_PROFILE_SIZE);
+            // JFR stops the recording on its own after duration as well
+            recording.setDuration(duration);
+            for (Class<? extends Event> eventClass : BALANCE_HISTORY_EVENTS) {
+                recording.enable(eventClass).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+
+            CompletableFuture<Path> profile = new CompletableFuture<>();
+            ScheduledFuture<?> stop = profileStopper.schedule(() -> stopProfileHelper(recording, profile),
+                    duration.toMillis(), TimeUnit.MILLISECONDS);
+            // Cancelled: stop now unless the scheduled stop already started
+            profile.whenComplete((file, e) -> {
+                if (profile.isCancelled() && stop.cancel(false)) {
+                    profileStopper.execute(() -> stopProfileHelper(recording, profile));
+                }
+            });
+            return Optional.of(profile);
+        } catch (IOException | ParseException | RuntimeException e) {
+            profiling.set(false);
+            throw e;
+        }
+    }
+
+    // Stop a profile and dump it to a temporary file, runs once per profile
+    private void stopProfileHelper(Recording recording, CompletableFuture<Path> profile) {
+        try (recording) {
+            if (profile.isCancelled()) {
+                return;
+            }
+            if (recording.getState() == RecordingState.RUNNING) {
+                recording.stop();
+            }
+            Path file = Files.createTempFile("balance-history-profile-", ".jfr");
+            recording.dump(file);
+            // Cancelled while dumping
+            if (!profile.complete(file)) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException | RuntimeException e) {
+            profile.completeExceptionally(e);
+        } finally {
+            profiling.set(false);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        profileStopper.shutdownNow();
+        if (continuousRecording != null) {
+            continuousRecording.close();
+        }
+    }
+}
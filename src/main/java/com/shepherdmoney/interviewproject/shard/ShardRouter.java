@@ -0,0 +1,82 @@
+package com.shepherdmoney.interviewproject.shard;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Routes credit cards and their balance history to a storage shard by a hash
+ * of the card number. Users are stored on every shard
+ */
+@Component
+public class ShardRouter {
+
+    // Each shard gets its own id range of 2^24 ids, see ShardSchemaInitializer
+    public static final int MAX_SHARDS = 127;
+
+    // Shard used by the current thread, null means the default shard (0)
+    private static final ThreadLocal<Integer> CURRENT_SHARD = new ThreadLocal<>();
+
+    private final int shardCount;
+
+    public ShardRouter(@Value("${sharding.shard-count:1}") int shardCount) {
+        if (shardCount < 1 || shardCount > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard count must be between 1 and " + MAX_SHARDS);
+        }
+        this.shardCount = shardCount;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public boolean isSharded() {
+        return shardCount > 1;
+    }
+
+    // Routing directory: the shard storing a credit card and its balance history
+    // Must stay stable for a given shard count, stored cards are never moved
+    public int shardOf(String creditCardNumber) {
+        int hash = creditCardNumber.hashCode() * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), shardCount);
+    }
+
+    // Run an action against one shard
+    // The shard must be chosen before a transaction starts, as the connection
+    // is taken from the shard when the transaction begins
+    public <T> T onShard(int shard, Supplier<T> action) {
+        Integer previousShard = CURRENT_SHARD.get();
+        CURRENT_SHARD.set(shard);
+        try {
+            return action.get();
+        } finally {
+            if (previousShard == null) {
+                CURRENT_SHARD.remove();
+            } else {
+                CURRENT_SHARD.set(previousShard);
+            }
+        }
+    }
+
+    // Run an action against the shard of a credit card
+    public <T> T onShardOf(String creditCardNumber, Supplier<T> action) {
+        return onShard(shardOf(creditCardNumber), action);
+    }
+
+    // Run a query on every shard and concatenate the results
+    public <T> List<T> fanOut(Supplier<? extends Collection<T>> query) {
+        List<T> results = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            results.addAll(onShard(shard, query));
+        }
+        return results;
+    }
+
+    static Integer currentShard() {
+        return CURRENT_SHARD.get();
+    }
+}
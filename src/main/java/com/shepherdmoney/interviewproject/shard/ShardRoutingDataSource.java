@@ -0,0 +1,28 @@
+package com.shepherdmoney.interviewproject.shard;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/**
+ * Data source handing out connections of the shard chosen with ShardRouter
+ */
+public class ShardRoutingDataSource extends AbstractRoutingDataSource implements DisposableBean {
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        // Null falls back to the default data source (shard 0)
+        return ShardRouter.currentShard();
+    }
+
+    // The shard pools are not beans themselves, close them with the context
+    @Override
+    public void destroy() throws Exception {
+        for (DataSource shardDataSource : getResolvedDataSources().values()) {
+            if (shardDataSource instanceof AutoCloseable closeableDataSource) {
+                closeableDataSource.close();
+            }
+        }
+    }
+}
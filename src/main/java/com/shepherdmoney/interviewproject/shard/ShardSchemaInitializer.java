@@ -0,0 +1,86 @@
+package com.shepherdmoney.interviewproject.shard;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+/**
+ * Copies the schema Hibernate created on shard 0 to the other shards
+ */
+public class ShardSchemaInitializer {
+
+    // Ids of shard i start at i * 2^24, so generated ids are unique across shards
+    public static final int SHARD_ID_RANGE_BITS = 24;
+
+    public ShardSchemaInitializer(ShardRoutingDataSource routingDataSource) throws SQLException {
+        Map<Object, DataSource> shards = routingDataSource.getResolvedDataSources();
+        List<String> schemaScript = readSchemaScriptHelper(shards.get(0));
+        for (Map.Entry<Object, DataSource> shard : shards.entrySet()) {
+            int shardIndex = (Integer) shard.getKey();
+            if (shardIndex != 0) {
+                initializeShardHelper(shard.getValue(), shardIndex, schemaScript);
+            }
+        }
+    }
+
+    // H2 exports the schema (tables, constraints, sequences) as SQL statements
+    private List<String> readSchemaScriptHelper(DataSource dataSource) throws SQLException {
+        List<String> statements = new ArrayList<>();
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SCRIPT NODATA")) {
+            while (resultSet.next()) {
+                String sql = resultSet.getString(1);
+                // Users and settings are per database, only copy the schema objects
+                if (!sql.startsWith("CREATE USER") && !sql.startsWith("SET ")) {
+                    statements.add(sql);
+                }
+            }
+        }
+        return statements;
+    }
+
+    // Create the schema on a shard which has none yet
+    // Shards which already have tables are left as they are, schema changes
+    // have to be applied to every shard
+    private void initializeShardHelper(DataSource dataSource, int shardIndex, List<String> schemaScript)
+            throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            try (ResultSet resultSet = statement.executeQuery(
+                    "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUBLIC'")) {
+                resultSet.next();
+                if (resultSet.getInt(1) > 0) {
+                    return;
+                }
+            }
+
+            for (String sql : schemaScript) {
+                statement.execute(sql);
+            }
+
+            // Move every sequence into the shard's own id range
+            // Hibernate's pooled optimizer hands out the block ending at the sequence
+            // value, so the first value is one increment past the start of the range
+            Map<String, Long> sequenceIncrements = new HashMap<>();
+            try (ResultSet resultSet = statement.executeQuery("SELECT SEQUENCE_NAME, INCREMENT FROM "
+                    + "INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_SCHEMA = 'PUBLIC'")) {
+                while (resultSet.next()) {
+                    sequenceIncrements.put(resultSet.getString(1), resultSet.getLong(2));
+                }
+            }
+            long rangeStart = (long) shardIndex << SHARD_ID_RANGE_BITS;
+            for (Map.Entry<String, Long> sequence : sequenceIncrements.entrySet()) {
+                statement.execute("ALTER SEQUENCE \"PUBLIC\".\"" + sequence.getKey() + "\" RESTART WITH "
+                        + (rangeStart + sequence.getValue()));
+            }
+        }
+    }
+}
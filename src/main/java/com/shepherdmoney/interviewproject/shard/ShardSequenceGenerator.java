@@ -0,0 +1,64 @@
+package com.shepherdmoney.interviewproject.shard;
+
+import java.util.Properties;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerationException;
+import org.hibernate.id.enhanced.Optimizer;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+/**
+ * Sequence id generator with one pool of ids per shard, so every id stored on
+ * a shard comes from that shard's own sequence and id range
+ */
+/*
+ * Hibernate keeps one id generator per entity for the whole application. A
+ * plain pooled sequence generator fetched a block of ids from the shard being
+ * written and then handed the rest of the block out on every shard, so the ids
+ * of a shard were neither in its range nor increasing. Here each shard has its
+ * own optimizer, and a shard's block is always fetched from that shard
+ */
+public class ShardSequenceGenerator extends SequenceStyleGenerator {
+
+    // Hibernate setting with the shard count, set by ShardingConfig
+    public static final String SHARD_COUNT_SETTING = "shepherdmoney.sharding.shard-count";
+
+    private Optimizer[] shardOptimizers;
+
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+        int shardCount = ConfigurationHelper.getInt(SHARD_COUNT_SETTING,
+                serviceRegistry.getService(ConfigurationService.class).getSettings(), 1);
+
+        // Every configuration builds a new optimizer, keep one per shard
+        shardOptimizers = new Optimizer[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            super.configure(type, params, serviceRegistry);
+            shardOptimizers[shard] = getOptimizer();
+        }
+    }
+
+    @Override
+    public Object generate(SharedSessionContractImplementor session, Object object) throws HibernateException {
+        // The session's connection is taken from the current shard, and so are
+        // the sequence values
+        Integer currentShard = ShardRouter.currentShard();
+        int shard = currentShard == null ? 0 : currentShard;
+        Object id = shardOptimizers[shard].generate(getDatabaseStructure().buildCallback(session));
+
+        // Fail rather than store an id of another shard's range: either the shard
+        // used up its range, or the connection is not on the current shard
+        long value = ((Number) id).longValue();
+        if (shardOptimizers.length > 1 && value >>> ShardSchemaInitializer.SHARD_ID_RANGE_BITS != shard) {
+            throw new IdentifierGenerationException("Id " + value + " is outside the id range of shard " + shard
+                    + " (" + (1 << ShardSchemaInitializer.SHARD_ID_RANGE_BITS) + " ids per shard)");
+        }
+        return id;
+    }
+}
@@ -0,0 +1,72 @@
+package com.shepherdmoney.interviewproject.shard;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.resource.jdbc.spi.PhysicalConnectionHandlingMode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import jakarta.persistence.EntityManagerFactory;
+
+/**
+ * Replaces the single data source with one data source per shard when
+ * sharding.shard-count is more than 1
+ */
+@Configuration
+@ConditionalOnExpression("${sharding.shard-count:1} > 1")
+public class ShardingConfig {
+
+    @Bean
+    @Primary
+    public ShardRoutingDataSource dataSource(ShardRouter shardRouter,
+            @Value("${sharding.url-template}") String urlTemplate, DataSourceProperties dataSourceProperties) {
+        Map<Object, Object> shards = new HashMap<>();
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            DataSource shardDataSource = DataSourceBuilder.create()
+                    .driverClassName(dataSourceProperties.getDriverClassName())
+                    .url(String.format(urlTemplate, shard))
+                    .username(dataSourceProperties.getUsername())
+                    .password(dataSourceProperties.getPassword())
+                    .build();
+            shards.put(shard, shardDataSource);
+        }
+
+        ShardRoutingDataSource routingDataSource = new ShardRoutingDataSource();
+        routingDataSource.setTargetDataSources(shards);
+        routingDataSource.setDefaultTargetDataSource(shards.get(0));
+        return routingDataSource;
+    }
+
+    // Open-in-view sessions hold their first connection for the whole request by
+    // default, release it after each transaction so the next one is routed again
+    @Bean
+    public HibernatePropertiesCustomizer shardConnectionHandlingCustomizer() {
+        return hibernateProperties -> hibernateProperties.put(AvailableSettings.CONNECTION_HANDLING,
+                PhysicalConnectionHandlingMode.DELAYED_ACQUISITION_AND_RELEASE_AFTER_TRANSACTION);
+    }
+
+    // ShardSequenceGenerator keeps one pool of ids per shard
+    @Bean
+    public HibernatePropertiesCustomizer shardIdGeneratorCustomizer(ShardRouter shardRouter) {
+        return hibernateProperties -> hibernateProperties.put(ShardSequenceGenerator.SHARD_COUNT_SETTING,
+                shardRouter.getShardCount());
+    }
+
+    // Runs once Hibernate has created the schema on shard 0
+    @Bean
+    public ShardSchemaInitializer shardSchemaInitializer(EntityManagerFactory entityManagerFactory,
+            ShardRoutingDataSource routingDataSource) throws SQLException {
+        return new ShardSchemaInitializer(routingDataSource);
+    }
+}
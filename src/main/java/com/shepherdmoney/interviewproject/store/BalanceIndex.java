@@ -0,0 +1,585 @@
+package com.shepherdmoney.interviewproject.store;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.shepherdmoney.interviewproject.repository.BalanceHistoryRepository;
+import com.shepherdmoney.interviewproject.repository.CreditCardKey;
+import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
+import com.shepherdmoney.interviewproject.repository.CreditCardSnapshot;
+import com.shepherdmoney.interviewproject.repository.DatabaseInstanceRepository;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+import com.shepherdmoney.interviewproject.shard.ShardSchemaInitializer;
+import com.shepherdmoney.interviewproject.vo.response.BalanceIndexStatsView;
+import com.shepherdmoney.interviewproject.vo.response.CardBalanceView;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Credit cards ordered by current balance, for threshold and top-N queries
+ * without reading every card
+ */
+/*
+ * With a checkpoint path, the index is written to a checkpoint file
+ * periodically and on shutdown. At startup it is restored from the checkpoint
+ * and only the cards changed since are read from the database, instead of
+ * parsing every card's balance history. This needs a schema kept across
+ * restarts (ddl-auto update or none), with ddl-auto create* nothing is written
+ */
+@Component
+@ConditionalOnProperty(name = "balance.index.enabled", havingValue = "true", matchIfMissing = true)
+public class BalanceIndex {
+
+    // Cards read per query when loading the index
+    private static final int LOAD_CHUNK_SIZE = 1000;
+
+    // Highest balance first, ties by card number
+    private record IndexEntry(double balance, String cardNumber) {
+    }
+
+    private static final Comparator<IndexEntry> BY_BALANCE_DESCENDING = Comparator
+            .comparingDouble(IndexEntry::balance).reversed()
+            .thenComparing(IndexEntry::cardNumber);
+
+    private final TreeSet<IndexEntry> entries = new TreeSet<>(BY_BALANCE_DESCENDING);
+    // Card number -> current balance, to find a card's entry in the ordered set
+    private final Map<String, Double> balanceOfCard = new HashMap<>();
+    // Readers see either the old or the new entry of a card, never neither
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Cards removed while the index is loading, so the load doesn't add them back
+    private final Set<String> removedWhileLoading = new HashSet<>();
+    // Cards updated while the index is loading, so the load doesn't overwrite them
+    private final Set<String> updatedWhileLoading = new HashSet<>();
+    private volatile boolean ready;
+
+    // Card number -> updates in progress, from the first balance record written
+    // until the index is updated
+    private final Map<String, Integer> updatingCards = new ConcurrentHashMap<>();
+
+    // Checkpoint file, none if empty
+    @Value("${balance.index.checkpoint.path:}")
+    private String checkpointPath = "";
+
+    @Value("${balance.index.checkpoint.interval:PT5M}")
+    private Duration checkpointInterval = Duration.ofMinutes(5);
+
+    // A database recreated at startup has nothing a checkpoint could be replayed on
+    @Value("${spring.jpa.hibernate.ddl-auto:none}")
+    private String ddlAuto = "none";
+
+    // Databases the index is loaded from (URL and instance id of every shard),
+    // checkpoints are only restored against the databases they were taken from
+    private volatile String databaseIdentity;
+
+    private final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "balance-index-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // How the index was loaded and when it was last checkpointed
+    private volatile boolean restoredFromCheckpoint;
+    private volatile long loadMillis;
+    private volatile int replayedCards;
+    private volatile Instant lastCheckpointAt;
+    private volatile long lastCheckpointMillis;
+    private volatile String lastCheckpointError;
+
+    @Autowired
+    private CreditCardRepository creditCardRepository;
+
+    @Autowired
+    private BalanceHistoryRepository balanceHistoryRepository;
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    @Autowired
+    private DatabaseInstanceRepository databaseInstanceRepository;
+
+    // Load the current balance of every card once the application has started
+    /*
+     * Cards updated while loading are already in the index with a newer balance,
+     * so loaded balances are only added for cards not in the index yet
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        long startedAt = System.nanoTime();
+        // A schema created at every startup can't be restored on, so no checkpoints
+        // are written for it either
+        if (!checkpointPath.isEmpty() && !ddlAuto.startsWith("create")) {
+            try {
+                databaseIdentity = databaseIdentityHelper();
+            } catch (RuntimeException e) {
+                // No checkpoints without knowing which databases they belong to
+                lastCheckpointError = e.toString();
+            }
+        }
+        if (!restoreHelper()) {
+            loadAllHelper();
+        }
+        lock.writeLock().lock();
+        try {
+            removedWhileLoading.clear();
+            updatedWhileLoading.clear();
+            ready = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+
+        if (databaseIdentity != null) {
+            long intervalMillis = checkpointInterval.toMillis();
+            checkpointer.scheduleWithFixedDelay(this::checkpoint, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Write the index to the checkpoint file, false if there is no checkpoint path,
+    // the index isn't loaded yet or writing failed
+    /*
+     * The balance history marks (highest record id of each id range) are read
+     * before the index is copied, so every record after a mark is replayed at
+     * restore. A record before the mark whose
+     * card isn't updated in the index yet belongs to an update in progress, and
+     * those cards are copied under the same lock as the index
+     */
+    public synchronized boolean checkpoint() {
+        if (checkpointPath.isEmpty() || databaseIdentity == null || !ready) {
+            return false;
+        }
+        long startedAt = System.nanoTime();
+        try {
+            int[] historyMarks = historyMarksHelper();
+
+            String[] cardNumbers;
+            double[] balances;
+            List<String> updating;
+            lock.readLock().lock();
+            try {
+                cardNumbers = new String[entries.size()];
+                balances = new double[entries.size()];
+                int i = 0;
+                for (IndexEntry entry : entries) {
+                    cardNumbers[i] = entry.cardNumber();
+                    balances[i] = entry.balance();
+                    i++;
+                }
+                updating = List.copyOf(updatingCards.keySet());
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            new BalanceIndexSnapshot(System.currentTimeMillis(), databaseIdentity, historyMarks, cardNumbers, balances, updating)
+                    .write(Path.of(checkpointPath));
+            lastCheckpointAt = Instant.now();
+            lastCheckpointMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+            lastCheckpointError = null;
+            return true;
+        } catch (Exception e) {
+            // Keep the previous checkpoint, the next one may succeed
+            lastCheckpointError = e.toString();
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        checkpointer.shutdownNow();
+        // Nothing to replay after a clean shutdown
+        checkpoint();
+    }
+
+    // Queries return nothing until the index is loaded
+    public boolean isReady() {
+        return ready;
+    }
+
+    // Set the current balance of a card from its balance history
+    public void update(String cardNumber, NavigableMap<String, Double> balanceHistory) {
+        Map.Entry<String, Double> lastEntry = balanceHistory.lastEntry();
+        update(cardNumber, lastEntry == null ? 0.0 : lastEntry.getValue());
+    }
+
+    // Set the current balance of a card, O(log n)
+    public void update(String cardNumber, double balance) {
+        lock.writeLock().lock();
+        try {
+            Double oldBalance = balanceOfCard.put(cardNumber, balance);
+            if (oldBalance != null) {
+                entries.remove(new IndexEntry(oldBalance, cardNumber));
+            }
+            entries.add(new IndexEntry(balance, cardNumber));
+            removedWhileLoading.remove(cardNumber);
+            if (!ready) {
+                updatedWhileLoading.add(cardNumber);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Mark the start of a card's update, before its first balance record is
+    // written, so a checkpoint taken meanwhile replays the card
+    public void beginUpdate(String cardNumber) {
+        updatingCards.merge(cardNumber, 1, Integer::sum);
+    }
+
+    // Mark the end of a card's update, after the index was updated
+    public void endUpdate(String cardNumber) {
+        updatingCards.computeIfPresent(cardNumber, (number, count) -> count == 1 ? null : count - 1);
+    }
+
+    public void remove(String cardNumber) {
+        lock.writeLock().lock();
+        try {
+            Double oldBalance = balanceOfCard.remove(cardNumber);
+            if (oldBalance != null) {
+                entries.remove(new IndexEntry(oldBalance, cardNumber));
+            }
+            if (!ready) {
+                removedWhileLoading.add(cardNumber);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Cards with a current balance over the threshold, highest first
+    // O(log n + limit) regardless of the number of cards
+    public List<CardBalanceView> findBalancesOver(double threshold, int limit) {
+        lock.readLock().lock();
+        try {
+            // Every entry before (threshold, "") has a higher balance
+            return toViewsHelper(entries.headSet(new IndexEntry(threshold, ""), false), limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Cards with the highest current balances, highest first, O(log n + n)
+    public List<CardBalanceView> findTopBalances(int n) {
+        lock.readLock().lock();
+        try {
+            return toViewsHelper(entries, n);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public BalanceIndexStatsView getStats() {
+        Instant checkpointAt = lastCheckpointAt;
+        return new BalanceIndexStatsView(ready, size(), restoredFromCheckpoint, loadMillis, replayedCards,
+                checkpointAt == null ? null : checkpointAt.toString(), lastCheckpointMillis, lastCheckpointError);
+    }
+
+    // Read the current balance of every card from the database
+    private void loadAllHelper() {
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            shardRouter.onShard(shard, () -> {
+                int lastId = 0;
+                List<CreditCardSnapshot> chunk;
+                do {
+                    chunk = creditCardRepository.findSnapshotsAfterId(lastId, PageRequest.of(0, LOAD_CHUNK_SIZE));
+                    for (CreditCardSnapshot snapshot : chunk) {
+                        loadCardHelper(snapshot.number(), currentBalanceHelper(snapshot.balanceHistoryJson()));
+                        lastId = snapshot.id();
+                    }
+                } while (chunk.size() == LOAD_CHUNK_SIZE);
+                return null;
+            });
+        }
+    }
+
+    // Restore the index from the checkpoint, then replay what changed since,
+    // false if there is no usable checkpoint
+    /*
+     * 1. Balances of the checkpoint, read through a memory mapping
+     * 2. Cards with balance records after the checkpoint's marks, and cards
+     *    whose update was in progress, re-read from the database
+     * 3. Card numbers (not histories) of every card, to read cards added since
+     *    and drop cards deleted since. This still pages through every card's
+     *    key, so a restore is O(cards) in keys read, only the histories are
+     *    limited to the cards changed since
+     */
+    private boolean restoreHelper() {
+        // The schema was just created, every card in a checkpoint is gone
+        if (checkpointPath.isEmpty() || databaseIdentity == null || ddlAuto.startsWith("create")) {
+            return false;
+        }
+        Optional<BalanceIndexSnapshot> optionalSnapshot;
+        try {
+            optionalSnapshot = BalanceIndexSnapshot.read(Path.of(checkpointPath));
+        } catch (IOException e) {
+            return false;
+        }
+        // Cards can't be matched to shards of another shard count, or to another
+        // database (a different URL, or the same URL recreated)
+        if (optionalSnapshot.isEmpty()
+                || optionalSnapshot.get().historyMarks().length != shardRouter.getShardCount()
+                || !optionalSnapshot.get().databaseIdentity().equals(databaseIdentity)) {
+            return false;
+        }
+        BalanceIndexSnapshot snapshot = optionalSnapshot.get();
+
+        // Records the checkpoint saw are gone (e.g. the database was restored from
+        // an older backup), changes since can't be told apart
+        int[] currentMarks = historyMarksHelper();
+        for (int range = 0; range < currentMarks.length; range++) {
+            if (snapshot.historyMarks()[range] > currentMarks[range]) {
+                return false;
+            }
+        }
+
+        // 1. Checkpoint balances, in balance order
+        String[] cardNumbers = snapshot.cardNumbers();
+        double[] balances = snapshot.balances();
+        for (int i = 0; i < cardNumbers.length; i++) {
+            loadCardHelper(cardNumbers[i], balances[i]);
+        }
+
+        // 2. Cards changed since the checkpoint
+        int replayed = 0;
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            replayed += shardRouter.onShard(shard, () -> {
+                Set<Integer> changedIds = new HashSet<>();
+                for (int range = 0; range < snapshot.historyMarks().length; range++) {
+                    changedIds.addAll(balanceHistoryRepository.findCreditCardIdsWithEntriesBetween(
+                            snapshot.historyMarks()[range], idRangeHelper(range)[1]));
+                }
+                return reloadCardsHelper(new ArrayList<>(changedIds));
+            });
+        }
+        for (String cardNumber : snapshot.updatingCards()) {
+            replayed += shardRouter.onShardOf(cardNumber, () -> creditCardRepository.findByNumber(cardNumber)
+                    .map(creditCard -> {
+                        replaceCardHelper(cardNumber, currentBalanceHelper(creditCard.getBalanceHistoryJson()));
+                        return 1;
+                    })
+                    .orElse(0));
+        }
+
+        // 3. Cards added and deleted since the checkpoint
+        int storedCards = 0;
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            storedCards += shardRouter.onShard(shard, () -> {
+                List<Integer> addedIds = new ArrayList<>();
+                int cardCount = forEachCardKeyHelper(key -> {
+                    if (!contains(key.number())) {
+                        addedIds.add(key.id());
+                    }
+                });
+                reloadCardsHelper(addedIds);
+                return cardCount;
+            });
+        }
+        // More cards in the index than stored: some were deleted since
+        if (size() > storedCards) {
+            Set<String> storedNumbers = new HashSet<>();
+            for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+                shardRouter.onShard(shard, () -> forEachCardKeyHelper(key -> storedNumbers.add(key.number())));
+            }
+            removeMissingCardsHelper(storedNumbers);
+        }
+
+        restoredFromCheckpoint = true;
+        replayedCards = replayed;
+        return true;
+    }
+
+    // Highest balance history record id of each id range, over every shard
+    private int[] historyMarksHelper() {
+        int[] historyMarks = new int[shardRouter.getShardCount()];
+        for (int range = 0; range < historyMarks.length; range++) {
+            int[] ids = idRangeHelper(range);
+            historyMarks[range] = ids[0] - 1;
+            for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+                Integer maxId = shardRouter.onShard(shard,
+                        () -> balanceHistoryRepository.findMaxIdBetween(ids[0], ids[1]));
+                if (maxId != null) {
+                    historyMarks[range] = Math.max(historyMarks[range], maxId);
+                }
+            }
+        }
+        return historyMarks;
+    }
+
+    // Identity of every shard's database, in shard order
+    private String databaseIdentityHelper() {
+        List<String> identities = new ArrayList<>();
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            identities.add(shardRouter.onShard(shard, databaseInstanceRepository::findIdentity));
+        }
+        return String.join(" ", identities);
+    }
+
+    // First and last balance history id of an id range
+    /*
+     * Ids of range r are generated on shard r (ShardSequenceGenerator), but
+     * records written before ids were generated per shard may be stored on any
+     * shard. Ids only grow within a range, so each range has its own mark, taken
+     * over every shard
+     */
+    private int[] idRangeHelper(int range) {
+        if (!shardRouter.isSharded()) {
+            return new int[] { 1, Integer.MAX_VALUE };
+        }
+        long first = (long) range << ShardSchemaInitializer.SHARD_ID_RANGE_BITS;
+        long last = Math.min(((long) (range + 1) << ShardSchemaInitializer.SHARD_ID_RANGE_BITS) - 1,
+                Integer.MAX_VALUE);
+        return new int[] { (int) Math.max(first, 1), (int) last };
+    }
+
+    // Re-read the current balance of some cards of the current shard, returns the
+    // number of cards read
+    private int reloadCardsHelper(List<Integer> creditCardIds) {
+        int reloaded = 0;
+        for (int from = 0; from < creditCardIds.size(); from += LOAD_CHUNK_SIZE) {
+            Collection<Integer> chunk = creditCardIds.subList(from,
+                    Math.min(from + LOAD_CHUNK_SIZE, creditCardIds.size()));
+            for (CreditCardSnapshot snapshot : creditCardRepository.findSnapshotsByIds(chunk)) {
+                replaceCardHelper(snapshot.number(), currentBalanceHelper(snapshot.balanceHistoryJson()));
+                reloaded++;
+            }
+        }
+        return reloaded;
+    }
+
+    // Visit the id and number of every card of the current shard, returns the
+    // number of cards
+    private int forEachCardKeyHelper(Consumer<CreditCardKey> visitor) {
+        int lastId = 0;
+        int cardCount = 0;
+        List<CreditCardKey> chunk;
+        do {
+            chunk = creditCardRepository.findKeysAfterId(lastId, PageRequest.of(0, LOAD_CHUNK_SIZE));
+            for (CreditCardKey key : chunk) {
+                visitor.accept(key);
+                lastId = key.id();
+            }
+            cardCount += chunk.size();
+        } while (chunk.size() == LOAD_CHUNK_SIZE);
+        return cardCount;
+    }
+
+    private boolean contains(String cardNumber) {
+        lock.readLock().lock();
+        try {
+            return balanceOfCard.containsKey(cardNumber);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Set a card's balance read during loading, unless it was updated or removed
+    // meanwhile
+    private void replaceCardHelper(String cardNumber, double balance) {
+        lock.writeLock().lock();
+        try {
+            if (updatedWhileLoading.contains(cardNumber) || removedWhileLoading.contains(cardNumber)) {
+                return;
+            }
+            Double oldBalance = balanceOfCard.put(cardNumber, balance);
+            if (oldBalance != null) {
+                entries.remove(new IndexEntry(oldBalance, cardNumber));
+            }
+            entries.add(new IndexEntry(balance, cardNumber));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Remove the cards restored from the checkpoint which are no longer stored,
+    // keeping cards added while loading
+    private void removeMissingCardsHelper(Set<String> storedNumbers) {
+        lock.writeLock().lock();
+        try {
+            Iterator<Map.Entry<String, Double>> iterator = balanceOfCard.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Double> card = iterator.next();
+                if (!storedNumbers.contains(card.getKey()) && !updatedWhileLoading.contains(card.getKey())) {
+                    entries.remove(new IndexEntry(card.getValue(), card.getKey()));
+                    iterator.remove();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void loadCardHelper(String cardNumber, double balance) {
+        lock.writeLock().lock();
+        try {
+            if (!balanceOfCard.containsKey(cardNumber) && !removedWhileLoading.contains(cardNumber)) {
+                balanceOfCard.put(cardNumber, balance);
+                entries.add(new IndexEntry(balance, cardNumber));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private List<CardBalanceView> toViewsHelper(Set<IndexEntry> orderedEntries, int limit) {
+        List<CardBalanceView> views = new ArrayList<>();
+        for (IndexEntry entry : orderedEntries) {
+            if (views.size() >= limit) {
+                break;
+            }
+            views.add(new CardBalanceView(entry.cardNumber(), entry.balance()));
+        }
+        return views;
+    }
+
+    // Current balance stored in a balance history JSON (last record)
+    private static double currentBalanceHelper(String balanceHistoryJson) {
+        if (balanceHistoryJson == null || balanceHistoryJson.isEmpty()) {
+            return 0.0;
+        }
+        Type type = new TypeToken<TreeMap<String, Double>>() {
+        }.getType();
+        TreeMap<String, Double> balanceHistory = new Gson().fromJson(balanceHistoryJson, type);
+        return balanceHistory.isEmpty() ? 0.0 : balanceHistory.lastEntry().getValue();
+    }
+}
@@ -0,0 +1,143 @@
+package com.shepherdmoney.interviewproject.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Checkpoint of the balance index: every card's current balance plus what is
+ * needed to replay the changes made after it was taken
+ */
+/*
+ * databaseIdentity names the databases (URL and instance id of every shard)
+ * the checkpoint was taken from, it is only restored against the same ones.
+ * historyMarks holds, per id range (one per shard), the highest balance
+ * history record id when the checkpoint was taken, so only the cards with
+ * newer records are re-read.
+ * updatingCards are the cards whose update was in progress, whose records may
+ * be older than the mark but whose balance may not be in the checkpoint yet
+ */
+record BalanceIndexSnapshot(long createdAtMillis, String databaseIdentity, int[] historyMarks, String[] cardNumbers,
+        double[] balances, List<String> updatingCards) {
+
+    // File layout: magic, version, created at, database identity, shard count,
+    // card count, updating card count, then the marks, the cards as (balance,
+    // number) and the updating card numbers, strings as (length, UTF-8 bytes),
+    // and a CRC32 of all of it
+    private static final int MAGIC = 0x42495853;
+    private static final int VERSION = 2;
+    private static final int TRAILER_SIZE = Long.BYTES;
+
+    // Write to a temporary file, then move it over the previous checkpoint, so a
+    // crash while writing leaves the previous checkpoint intact
+    void write(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporaryPath = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            CRC32 crc = new CRC32();
+            try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE)) {
+                BufferedOutputStream fileOut = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(fileOut, crc));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(createdAtMillis);
+                writeStringHelper(out, databaseIdentity);
+                out.writeInt(historyMarks.length);
+                out.writeInt(cardNumbers.length);
+                out.writeInt(updatingCards.size());
+                for (int historyMark : historyMarks) {
+                    out.writeInt(historyMark);
+                }
+                for (int i = 0; i < cardNumbers.length; i++) {
+                    out.writeDouble(balances[i]);
+                    writeStringHelper(out, cardNumbers[i]);
+                }
+                for (String cardNumber : updatingCards) {
+                    writeStringHelper(out, cardNumber);
+                }
+                out.flush();
+
+                // Checksum trailer, written past the checksummed stream
+                new DataOutputStream(fileOut).writeLong(crc.getValue());
+                fileOut.flush();
+                // On disk before it replaces the previous checkpoint
+                channel.force(true);
+            }
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+    }
+
+    // Read a checkpoint through a read-only memory mapping, empty if there is
+    // none or it is damaged or from another version
+    static Optional<BalanceIndexSnapshot> read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return Optional.empty();
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < TRAILER_SIZE || size > Integer.MAX_VALUE) {
+                return Optional.empty();
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            // Check the whole file before trusting any count in it
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(0, (int) size - TRAILER_SIZE));
+            if (crc.getValue() != buffer.getLong((int) size - TRAILER_SIZE)) {
+                return Optional.empty();
+            }
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return Optional.empty();
+            }
+            long createdAtMillis = buffer.getLong();
+            String databaseIdentity = readStringHelper(buffer);
+            int[] historyMarks = new int[buffer.getInt()];
+            String[] cardNumbers = new String[buffer.getInt()];
+            double[] balances = new double[cardNumbers.length];
+            int updatingCardCount = buffer.getInt();
+            for (int i = 0; i < historyMarks.length; i++) {
+                historyMarks[i] = buffer.getInt();
+            }
+            for (int i = 0; i < cardNumbers.length; i++) {
+                balances[i] = buffer.getDouble();
+                cardNumbers[i] = readStringHelper(buffer);
+            }
+            List<String> updatingCards = new ArrayList<>(updatingCardCount);
+            for (int i = 0; i < updatingCardCount; i++) {
+                updatingCards.add(readStringHelper(buffer));
+            }
+            return Optional.of(new BalanceIndexSnapshot(createdAtMillis, databaseIdentity, historyMarks,
+                    cardNumbers, balances, updatingCards));
+        }
+    }
+
+    private static void writeStringHelper(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readStringHelper(ByteBuffer buffer) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,57 @@
+package com.shepherdmoney.interviewproject.store;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Striped per credit card locks, held while a card's balance history is
+ * committed and published to the off-heap store, read model and balance index
+ */
+/*
+ * Derived stores take whole balance histories. Without the lock, two updates
+ * of a card could commit A then B but publish B then A, leaving A's older
+ * history in the stores until the card is written again. Holding the card's
+ * lock from the transaction to the publish makes the publish order the commit
+ * order. Cards sharing a stripe only wait for each other
+ */
+@Component
+public class CreditCardLocks {
+
+    private static final int STRIPES = 1024;
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    public CreditCardLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    // Run an action holding the locks of some credit cards
+    // Stripes are taken in ascending order, so two callers can't deadlock
+    public <T> T withLocks(Collection<String> creditCardNumbers, Supplier<T> action) {
+        TreeSet<Integer> stripeIndexes = new TreeSet<>();
+        for (String creditCardNumber : creditCardNumbers) {
+            stripeIndexes.add(Math.floorMod(creditCardNumber.hashCode() * 0x9E3779B9, STRIPES));
+        }
+        int locked = 0;
+        try {
+            for (int stripeIndex : stripeIndexes) {
+                stripes[stripeIndex].lock();
+                locked++;
+            }
+            return action.get();
+        } finally {
+            for (int stripeIndex : stripeIndexes) {
+                if (locked-- == 0) {
+                    break;
+                }
+                stripes[stripeIndex].unlock();
+            }
+        }
+    }
+}
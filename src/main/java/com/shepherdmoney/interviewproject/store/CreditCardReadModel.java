@@ -0,0 +1,276 @@
+package com.shepherdmoney.interviewproject.store;
+
+import java.lang.reflect.Type;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.shepherdmoney.interviewproject.repository.CreditCardOwnerSnapshot;
+import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
+import com.shepherdmoney.interviewproject.repository.UserRepository;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+import com.shepherdmoney.interviewproject.vo.response.CreditCardView;
+import com.shepherdmoney.interviewproject.vo.response.ReadModelStatsView;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Denormalized, in-memory read model of users' credit cards and balances, fed
+ * asynchronously from the write path so reads don't touch the credit card rows
+ */
+@Component
+@ConditionalOnProperty(name = "readmodel.enabled", havingValue = "true")
+public class CreditCardReadModel {
+
+    private static final Logger log = LoggerFactory.getLogger(CreditCardReadModel.class);
+
+    // Users and credit cards read per query by the initial load
+    private static final int LOAD_PAGE_SIZE = 1000;
+
+    // User id -> credit cards of the user
+    private final Map<Integer, List<CreditCardView>> cardsOfUser = new ConcurrentHashMap<>();
+    // Credit card number -> owner's user id
+    private final Map<String, Integer> ownerOfCard = new ConcurrentHashMap<>();
+    // Credit card number -> current balance
+    private final Map<String, Double> currentBalances = new ConcurrentHashMap<>();
+    // Credit card number -> (date -> balance), replaced as a whole on every change
+    private final Map<String, NavigableMap<LocalDate, Double>> balancesOnDate = new ConcurrentHashMap<>();
+
+    // Changes are applied by a single thread, in the order they were published
+    // Scheduled, so a failed initial load is retried on the same thread
+    private final ScheduledExecutorService applier = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "read-model-applier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Lag between a write and its change becoming visible to reads
+    private final AtomicLong pendingChanges = new AtomicLong();
+    private final AtomicLong appliedChanges = new AtomicLong();
+    private final AtomicLong maxLagNanos = new AtomicLong();
+    private volatile long lastLagNanos;
+
+    // Reads fall back to the database until the initial load has been applied
+    private volatile boolean ready;
+
+    // Failed initial loads, retried until one succeeds
+    private final AtomicLong rebuildFailures = new AtomicLong();
+    private volatile String lastRebuildError;
+
+    private final UserRepository userRepository;
+    private final CreditCardRepository creditCardRepository;
+    private final ShardRouter shardRouter;
+    private final Duration rebuildRetryDelay;
+
+    public CreditCardReadModel(UserRepository userRepository, CreditCardRepository creditCardRepository,
+            ShardRouter shardRouter, @Value("${readmodel.rebuild-retry-delay:PT30S}") Duration rebuildRetryDelay) {
+        this.userRepository = userRepository;
+        this.creditCardRepository = creditCardRepository;
+        this.shardRouter = shardRouter;
+        this.rebuildRetryDelay = rebuildRetryDelay;
+    }
+
+    // Load every user and credit card once the application has started
+    // Queued like any other change, so changes written meanwhile are applied after
+    // it, but not counted as lag
+    // Read a page at a time, each page is applied before the next one is read
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        applier.execute(this::rebuildHelper);
+    }
+
+    // Reads keep falling back to the database while the load fails, the failure
+    // is logged and shown in /read-model:stats. Cards loaded before the failure
+    // are loaded again by the retry
+    private void rebuildHelper() {
+        try {
+            int lastUserId = 0;
+            List<Integer> userIds;
+            do {
+                userIds = userRepository.findIdsAfterId(lastUserId, PageRequest.of(0, LOAD_PAGE_SIZE));
+                for (int userId : userIds) {
+                    cardsOfUser.putIfAbsent(userId, new CopyOnWriteArrayList<>());
+                    lastUserId = userId;
+                }
+            } while (userIds.size() == LOAD_PAGE_SIZE);
+
+            for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+                shardRouter.onShard(shard, () -> {
+                    int lastCardId = 0;
+                    List<CreditCardOwnerSnapshot> snapshots;
+                    do {
+                        snapshots = creditCardRepository.findOwnerSnapshotsAfterId(lastCardId,
+                                PageRequest.of(0, LOAD_PAGE_SIZE));
+                        for (CreditCardOwnerSnapshot snapshot : snapshots) {
+                            addCardHelper(snapshot.ownerId(), snapshot.number(), snapshot.issuanceBank());
+                            setBalanceHistoryHelper(snapshot.number(),
+                                    parseBalanceHistoryHelper(snapshot.balanceHistoryJson()));
+                            lastCardId = snapshot.id();
+                        }
+                    } while (snapshots.size() == LOAD_PAGE_SIZE);
+                    return null;
+                });
+            }
+            ready = true;
+            lastRebuildError = null;
+        } catch (RuntimeException e) {
+            rebuildFailures.incrementAndGet();
+            lastRebuildError = e.toString();
+            log.error("Could not load the read model, retrying in {}", rebuildRetryDelay, e);
+            if (!applier.isShutdown()) {
+                applier.schedule(this::rebuildHelper, rebuildRetryDelay.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    public void publishUserCreated(int userId) {
+        publishHelper(() -> cardsOfUser.putIfAbsent(userId, new CopyOnWriteArrayList<>()));
+    }
+
+    public void publishCardAdded(int userId, String cardNumber, String issuanceBank) {
+        publishHelper(() -> addCardHelper(userId, cardNumber, issuanceBank));
+    }
+
+    // The history is copied here, the caller keeps modifying its own map
+    public void publishBalanceHistoryChanged(String cardNumber, NavigableMap<String, Double> balanceHistory) {
+        TreeMap<String, Double> balanceHistoryCopy = new TreeMap<>(balanceHistory);
+        publishHelper(() -> setBalanceHistoryHelper(cardNumber, balanceHistoryCopy));
+    }
+
+    public void publishUserDeleted(int userId) {
+        publishHelper(() -> {
+            List<CreditCardView> creditCards = cardsOfUser.remove(userId);
+            if (creditCards != null) {
+                for (CreditCardView creditCard : creditCards) {
+                    ownerOfCard.remove(creditCard.getNumber());
+                    currentBalances.remove(creditCard.getNumber());
+                    balancesOnDate.remove(creditCard.getNumber());
+                }
+            }
+        });
+    }
+
+    // Get all credit cards of a user, empty if the read model doesn't know the user
+    public Optional<List<CreditCardView>> findCreditCardViewsOfUser(int userId) {
+        if (!ready) {
+            return Optional.empty();
+        }
+        List<CreditCardView> creditCards = cardsOfUser.get(userId);
+        return creditCards == null ? Optional.empty() : Optional.of(List.copyOf(creditCards));
+    }
+
+    // Get the owner's user id of a credit card, empty if the read model doesn't know the card
+    public Optional<Integer> findUserIdOfCreditCard(String cardNumber) {
+        return ready ? Optional.ofNullable(ownerOfCard.get(cardNumber)) : Optional.empty();
+    }
+
+    // Get the current balance, or NaN if the read model doesn't know the card
+    public double getCurrentBalance(String cardNumber) {
+        if (!ready) {
+            return Double.NaN;
+        }
+        Double balance = currentBalances.get(cardNumber);
+        return balance == null ? Double.NaN : balance;
+    }
+
+    // Get the balance on a specific date (closest previous record), or NaN if the
+    // read model doesn't know the card
+    public double getBalanceOnDate(String cardNumber, LocalDate date) {
+        if (!ready) {
+            return Double.NaN;
+        }
+        NavigableMap<LocalDate, Double> balances = balancesOnDate.get(cardNumber);
+        if (balances == null) {
+            return Double.NaN;
+        }
+        Map.Entry<LocalDate, Double> entry = balances.floorEntry(date);
+        return entry == null ? 0.0 : entry.getValue();
+    }
+
+    public ReadModelStatsView getStats() {
+        return new ReadModelStatsView(ready, pendingChanges.get(), appliedChanges.get(),
+                lastLagNanos / 1_000_000.0, maxLagNanos.get() / 1_000_000.0, cardsOfUser.size(),
+                ownerOfCard.size(), rebuildFailures.get(), lastRebuildError);
+    }
+
+    @PreDestroy
+    public void close() {
+        applier.shutdownNow();
+    }
+
+    // Wait until every change published so far has been applied
+    void awaitCaughtUp() throws InterruptedException, ExecutionException {
+        applier.submit(() -> {
+        }).get();
+    }
+
+    private void publishHelper(Runnable change) {
+        long publishedAt = System.nanoTime();
+        pendingChanges.incrementAndGet();
+        applier.execute(() -> {
+            try {
+                change.run();
+            } finally {
+                long lagNanos = System.nanoTime() - publishedAt;
+                lastLagNanos = lagNanos;
+                maxLagNanos.accumulateAndGet(lagNanos, Math::max);
+                appliedChanges.incrementAndGet();
+                pendingChanges.decrementAndGet();
+            }
+        });
+    }
+
+    private void addCardHelper(int userId, String cardNumber, String issuanceBank) {
+        // Already loaded (a card added during the initial load)
+        if (ownerOfCard.putIfAbsent(cardNumber, userId) != null) {
+            return;
+        }
+        cardsOfUser.computeIfAbsent(userId, id -> new CopyOnWriteArrayList<>())
+                .add(new CreditCardView(issuanceBank, cardNumber));
+        currentBalances.put(cardNumber, 0.0);
+        balancesOnDate.put(cardNumber, Collections.emptyNavigableMap());
+    }
+
+    private void setBalanceHistoryHelper(String cardNumber, NavigableMap<String, Double> balanceHistory) {
+        // The card was deleted before this change was applied
+        if (!ownerOfCard.containsKey(cardNumber)) {
+            return;
+        }
+        TreeMap<LocalDate, Double> balances = new TreeMap<>();
+        balanceHistory.forEach((date, balance) -> balances.put(LocalDate.parse(date), balance));
+        balancesOnDate.put(cardNumber, Collections.unmodifiableNavigableMap(balances));
+        currentBalances.put(cardNumber, balances.isEmpty() ? 0.0 : balances.lastEntry().getValue());
+    }
+
+    private NavigableMap<String, Double> parseBalanceHistoryHelper(String balanceHistoryJson) {
+        if (balanceHistoryJson == null || balanceHistoryJson.isEmpty()) {
+            return Collections.emptyNavigableMap();
+        }
+        Type type = new TypeToken<TreeMap<String, Double>>() {
+        }.getType();
+        return new Gson().fromJson(balanceHistoryJson, type);
+    }
+}
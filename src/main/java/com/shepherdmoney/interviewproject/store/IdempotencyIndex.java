@@ -0,0 +1,143 @@
+package com.shepherdmoney.interviewproject.store;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import com.shepherdmoney.interviewproject.vo.request.UpdateBalancePayload;
+
+/**
+ * Bounded, TTL-evicted index of update-balance batches by idempotency key, so
+ * retried batches return their original result instead of being applied again
+ */
+/*
+ * Completed results live in a cache bounded by size. Batches being applied,
+ * and batches which failed after some shards were committed, live in a
+ * separate cache which is never evicted by size, so a concurrent duplicate
+ * can't slip in and a retry never applies a committed shard again. Claims
+ * expire instead: a failed batch after the TTL, and a batch being applied after
+ * its lease, so a request which died without releasing its key doesn't block
+ * the key forever. The lease must be longer than any batch takes to apply
+ */
+@Component
+public class IdempotencyIndex {
+
+    // Result of a batch, completed is false while the batch is being applied
+    public record BatchResult(String fingerprint, boolean completed, int status, String body) {
+    }
+
+    // Batch being applied (inProgress) or failed after committing appliedShards
+    private record Claim(String fingerprint, boolean inProgress, Set<Integer> appliedShards) {
+    }
+
+    private final Cache<String, BatchResult> batchResults;
+    private final Cache<String, Claim> claims;
+
+    public IdempotencyIndex(@Value("${idempotency.max-keys:100000}") long maxKeys,
+            @Value("${idempotency.ttl:PT24H}") Duration ttl,
+            @Value("${idempotency.lease:PT10M}") Duration lease) {
+        this.batchResults = Caffeine.newBuilder()
+                .maximumSize(maxKeys)
+                .expireAfterWrite(ttl)
+                .build();
+        // Expired claims are removed by the scheduler, also when the key is never
+        // used again
+        this.claims = Caffeine.newBuilder()
+                .expireAfter(new Expiry<String, Claim>() {
+                    @Override
+                    public long expireAfterCreate(String key, Claim claim, long currentTime) {
+                        return (claim.inProgress() ? lease : ttl).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Claim claim, long currentTime,
+                            long currentDuration) {
+                        return (claim.inProgress() ? lease : ttl).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Claim claim, long currentTime,
+                            long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .scheduler(Scheduler.systemScheduler())
+                .build();
+    }
+
+    // Claim a key for a batch
+    // Returns null if the caller should apply the batch, otherwise the result of
+    // the batch which already used this key (possibly still in progress)
+    public BatchResult claim(String idempotencyKey, String fingerprint) {
+        BatchResult[] previousResult = new BatchResult[1];
+        claims.asMap().compute(idempotencyKey, (key, claim) -> {
+            // Checked under the claim's lock, complete() stores the result before
+            // dropping the claim
+            BatchResult completedResult = batchResults.getIfPresent(key);
+            if (completedResult != null) {
+                previousResult[0] = completedResult;
+                return claim;
+            }
+            // Expired claims are seen as absent
+            if (claim == null) {
+                return new Claim(fingerprint, true, Set.of());
+            }
+            if (claim.inProgress() || !claim.fingerprint().equals(fingerprint)) {
+                previousResult[0] = new BatchResult(claim.fingerprint(), false, 0, null);
+                return claim;
+            }
+            // Retry of a batch which failed partway, resume it
+            return new Claim(fingerprint, true, claim.appliedShards());
+        });
+        return previousResult[0];
+    }
+
+    // Shards already committed by an earlier attempt of a claimed batch
+    public Set<Integer> getAppliedShards(String idempotencyKey) {
+        Claim claim = claims.getIfPresent(idempotencyKey);
+        return claim == null ? Set.of() : claim.appliedShards();
+    }
+
+    // Store the result of a claimed batch
+    public void complete(String idempotencyKey, String fingerprint, int status, String body) {
+        batchResults.put(idempotencyKey, new BatchResult(fingerprint, true, status, body));
+        claims.invalidate(idempotencyKey);
+    }
+
+    // Release a claimed key when the batch failed, so a retry applies it again
+    // Shards committed before the failure are kept, the retry skips them
+    public void release(String idempotencyKey, Set<Integer> appliedShards) {
+        if (appliedShards.isEmpty()) {
+            claims.invalidate(idempotencyKey);
+        } else {
+            claims.asMap().computeIfPresent(idempotencyKey, (key, claim) -> new Claim(claim.fingerprint(), false,
+                    Set.copyOf(appliedShards)));
+        }
+    }
+
+    // Content hash of a batch, built from the content of every row in order
+    public static String fingerprint(UpdateBalancePayload[] payload) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (UpdateBalancePayload row : payload) {
+                String rowContent = row.getCreditCardNumber() + "|" + row.getBalanceDate() + "|"
+                        + Double.doubleToLongBits(row.getBalanceAmount()) + "\n";
+                digest.update(rowContent.getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is available on every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package com.shepherdmoney.interviewproject.store;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Type;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.StampedLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
+import com.shepherdmoney.interviewproject.repository.CreditCardSnapshot;
+import com.shepherdmoney.interviewproject.repository.DatabaseInstanceRepository;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Off-heap store of the most recent balance history of every credit card,
+ * backed by a memory-mapped file and keyed by credit card number
+ */
+/*
+ * A restart remaps the file of the previous run, so no balance history is read
+ * or parsed. The file is only emptied and rebuilt from the database when it
+ * can't be trusted: a different layout, a run that didn't close it (a crash may
+ * have torn a slot or skipped a write), another database, or a database
+ * recreated at startup (ddl-auto create). Reads return NaN (read the database
+ * instead) until the file is checked or rebuilt
+ */
+@Component
+@ConditionalOnProperty(name = "balance.offheap.enabled", havingValue = "true")
+public class OffHeapBalanceStore {
+
+    private static final Logger log = LoggerFactory.getLogger(OffHeapBalanceStore.class);
+
+    // File layout: a fixed size header followed by fixed size slots
+    /*
+     * Header layout: magic, version, slot count, history capacity, state (open or
+     * closed) and the SHA-256 of the identity of the databases it was built from.
+     * Slot layout: state (0 = empty, 1 = used, -1 = deleted), card number hash,
+     * entry count, flags, card number length and chars, then history capacity
+     * pairs of (epoch day, balance) sorted chronologically
+     */
+    // Slots form an open addressing hash table, so the file itself is the index
+    private static final int MAGIC = 0x42414C53;
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 64;
+    private static final int FILE_STATE_OFFSET = 16;
+    private static final int IDENTITY_OFFSET = 20;
+    private static final int IDENTITY_SIZE = 32;
+    private static final int FILE_OPEN = 0;
+    private static final int FILE_CLOSED = 1;
+    // Longer or non-ASCII card numbers are not stored, their balances are read
+    // from the database
+    private static final int NUMBER_CAPACITY = 32;
+    private static final int NUMBER_OFFSET = 20;
+    private static final int SLOT_HEADER_SIZE = NUMBER_OFFSET + NUMBER_CAPACITY;
+    private static final int ENTRY_SIZE = 12;
+    private static final int EMPTY_SLOT = 0;
+    private static final int USED_SLOT = 1;
+    private static final int DELETED_SLOT = -1;
+    private static final int TRUNCATED_FLAG = 1;
+    // Largest mapping is 2GB, so slots are split over several mapped segments
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+    // Cards read per query when rebuilding the store
+    private static final int LOAD_CHUNK_SIZE = 1000;
+
+    private final int slotCount;
+    private final int historyCapacity;
+    private final int slotSize;
+    private final int slotsPerSegment;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    // Whether the file of the previous run was remapped, with the identity of the
+    // databases it was built from
+    private final boolean remapped;
+    private final byte[] remappedIdentity;
+
+    // Optimistic reads don't allocate and don't block writers
+    private final StampedLock lock = new StampedLock();
+
+    // Cards written (null history when removed) before the store is ready, applied
+    // once the file is checked or rebuilt (guarded by the write lock)
+    private final Map<String, NavigableMap<String, Double>> changedWhileLoading = new HashMap<>();
+    private volatile boolean ready;
+    // Whether the header holds the identity of the current databases
+    private volatile boolean identified;
+
+    // A database recreated at startup has none of the cards in the file
+    @Value("${spring.jpa.hibernate.ddl-auto:none}")
+    private String ddlAuto = "none";
+
+    @Autowired
+    private CreditCardRepository creditCardRepository;
+
+    @Autowired
+    private DatabaseInstanceRepository databaseInstanceRepository;
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    public OffHeapBalanceStore(@Value("${balance.offheap.path}") String path,
+            @Value("${balance.offheap.slot-count:65536}") int slotCount,
+            @Value("${balance.offheap.history-capacity:64}") int historyCapacity) throws IOException {
+        if (slotCount <= 0 || historyCapacity <= 0) {
+            throw new IllegalArgumentException("Slot count and history capacity must be positive");
+        }
+        this.slotCount = slotCount;
+        this.historyCapacity = historyCapacity;
+        this.slotSize = SLOT_HEADER_SIZE + historyCapacity * ENTRY_SIZE;
+        this.slotsPerSegment = MAX_SEGMENT_SIZE / slotSize;
+        if (slotsPerSegment == 0) {
+            throw new IllegalArgumentException("History capacity is too large");
+        }
+
+        long fileSize = HEADER_SIZE + (long) slotCount * slotSize;
+        this.file = new RandomAccessFile(path, "rw");
+        this.remapped = hasMatchingHeader(file, fileSize, slotCount, historyCapacity);
+        if (!remapped) {
+            // Start from an empty (zero filled) store
+            file.setLength(0);
+            file.setLength(fileSize);
+        }
+
+        FileChannel channel = file.getChannel();
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        this.remappedIdentity = new byte[IDENTITY_SIZE];
+        header.get(IDENTITY_OFFSET, remappedIdentity);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, slotCount);
+        header.putInt(12, historyCapacity);
+        // Open until closed, a crash leaves the file to be rebuilt
+        header.putInt(FILE_STATE_OFFSET, FILE_OPEN);
+        header.force();
+
+        int segmentCount = (slotCount + slotsPerSegment - 1) / slotsPerSegment;
+        this.segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            int slotsInSegment = Math.min(slotsPerSegment, slotCount - i * slotsPerSegment);
+            long position = HEADER_SIZE + (long) i * slotsPerSegment * slotSize;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) slotsInSegment * slotSize);
+        }
+    }
+
+    // Check the remapped file against the databases once the application has
+    // started, and rebuild the store from every card's stored balance history if
+    // it doesn't belong to them
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        byte[] identity = null;
+        try {
+            identity = databaseIdentityHelper();
+        } catch (RuntimeException e) {
+            // Without knowing the databases, rebuild now and again next run
+            log.warn("Could not read the database identity, rebuilding the off-heap balance store", e);
+        }
+        boolean trusted = identity != null && remapped && !ddlAuto.startsWith("create")
+                && Arrays.equals(identity, remappedIdentity);
+        if (!trusted) {
+            clearHelper();
+            for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+                shardRouter.onShard(shard, () -> {
+                    int lastId = 0;
+                    List<CreditCardSnapshot> chunk;
+                    do {
+                        chunk = creditCardRepository.findSnapshotsAfterId(lastId, PageRequest.of(0, LOAD_CHUNK_SIZE));
+                        for (CreditCardSnapshot snapshot : chunk) {
+                            loadCardHelper(snapshot.number(), balanceHistoryHelper(snapshot.balanceHistoryJson()));
+                            lastId = snapshot.id();
+                        }
+                    } while (chunk.size() == LOAD_CHUNK_SIZE);
+                    return null;
+                });
+            }
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            // Changes made meanwhile are newer than the file and the database reads
+            for (Map.Entry<String, NavigableMap<String, Double>> change : changedWhileLoading.entrySet()) {
+                if (change.getValue() == null) {
+                    removeHelper(change.getKey());
+                } else {
+                    putHelper(change.getKey(), change.getValue());
+                }
+            }
+            changedWhileLoading.clear();
+            if (identity != null) {
+                header.put(IDENTITY_OFFSET, identity);
+                identified = true;
+            }
+            ready = true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Reads return NaN until the store is checked or rebuilt
+    public boolean isReady() {
+        return ready;
+    }
+
+    // Whether the store was remapped from the file of the previous run, rather
+    // than rebuilt from the database
+    public boolean isRemapped() {
+        return remapped;
+    }
+
+    // Store the most recent entries of a credit card's balance history
+    // Returns false if the store is full or the card number can't be stored
+    public boolean put(String cardNumber, NavigableMap<String, Double> balanceHistory) {
+        long stamp = lock.writeLock();
+        try {
+            if (!ready) {
+                changedWhileLoading.put(cardNumber, new TreeMap<>(balanceHistory));
+                return true;
+            }
+            return putHelper(cardNumber, balanceHistory);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Remove a credit card from the store
+    public void remove(String cardNumber) {
+        long stamp = lock.writeLock();
+        try {
+            if (!ready) {
+                changedWhileLoading.put(cardNumber, null);
+                return;
+            }
+            removeHelper(cardNumber);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Get the current balance, or NaN if the credit card is not in the store
+    public double getCurrentBalance(String cardNumber) {
+        return getBalanceOnEpochDay(cardNumber, Integer.MAX_VALUE);
+    }
+
+    // Get the balance on a specific date, or NaN if the store can't answer
+    public double getBalanceOnDate(String cardNumber, LocalDate date) {
+        return getBalanceOnEpochDay(cardNumber, (int) date.toEpochDay());
+    }
+
+    // Flush the mapped file to disk, then mark it closed so the next run remaps it
+    @PreDestroy
+    public void close() throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            // A store closed before it was checked or rebuilt is rebuilt next time
+            if (ready && identified) {
+                header.putInt(FILE_STATE_OFFSET, FILE_CLOSED);
+            }
+            header.force();
+            file.close();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Whether an existing file has this store's layout and was closed, so its
+    // slots can be remapped as they are
+    private static boolean hasMatchingHeader(RandomAccessFile file, long fileSize, int slotCount,
+            int historyCapacity) throws IOException {
+        if (file.length() != fileSize) {
+            return false;
+        }
+        file.seek(0);
+        boolean matching = file.readInt() == MAGIC && file.readInt() == VERSION && file.readInt() == slotCount
+                && file.readInt() == historyCapacity && file.readInt() == FILE_CLOSED;
+        file.seek(0);
+        return matching;
+    }
+
+    // Empty every slot
+    private void clearHelper() {
+        long stamp = lock.writeLock();
+        try {
+            byte[] zeros = new byte[slotSize];
+            for (int slot = 0; slot < slotCount; slot++) {
+                segmentOf(slot).put(offsetOf(slot), zeros);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Store a card loaded from the database unless it changed since it was read
+    private void loadCardHelper(String cardNumber, NavigableMap<String, Double> balanceHistory) {
+        long stamp = lock.writeLock();
+        try {
+            if (!changedWhileLoading.containsKey(cardNumber)) {
+                putHelper(cardNumber, balanceHistory);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Write a card's slot, the caller holds the write lock
+    private boolean putHelper(String cardNumber, NavigableMap<String, Double> balanceHistory) {
+        if (!isStorableHelper(cardNumber)) {
+            return false;
+        }
+        int slot = findSlotHelper(cardNumber, true);
+        if (slot < 0) {
+            return false;
+        }
+        MappedByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+
+        // Keep only the latest historyCapacity entries
+        int count = Math.min(balanceHistory.size(), historyCapacity);
+        int skip = balanceHistory.size() - count;
+        Iterator<Map.Entry<String, Double>> entries = balanceHistory.entrySet().iterator();
+        for (int i = 0; i < skip; i++) {
+            entries.next();
+        }
+        for (int i = 0; i < count; i++) {
+            Map.Entry<String, Double> entry = entries.next();
+            int entryOffset = offset + SLOT_HEADER_SIZE + i * ENTRY_SIZE;
+            segment.putInt(entryOffset, (int) LocalDate.parse(entry.getKey()).toEpochDay());
+            segment.putDouble(entryOffset + 4, entry.getValue());
+        }
+
+        segment.putInt(offset + 4, cardNumber.hashCode());
+        segment.putInt(offset + 8, count);
+        segment.putInt(offset + 12, skip > 0 ? TRUNCATED_FLAG : 0);
+        segment.putInt(offset + 16, cardNumber.length());
+        for (int i = 0; i < cardNumber.length(); i++) {
+            segment.put(offset + NUMBER_OFFSET + i, (byte) cardNumber.charAt(i));
+        }
+        segment.putInt(offset, USED_SLOT);
+        return true;
+    }
+
+    // Remove a card's slot, the caller holds the write lock
+    private void removeHelper(String cardNumber) {
+        if (!isStorableHelper(cardNumber)) {
+            return;
+        }
+        int slot = findSlotHelper(cardNumber, false);
+        if (slot >= 0) {
+            segmentOf(slot).putInt(offsetOf(slot), DELETED_SLOT);
+        }
+    }
+
+    private double getBalanceOnEpochDay(String cardNumber, int epochDay) {
+        if (!ready || !isStorableHelper(cardNumber)) {
+            return Double.NaN;
+        }
+        long stamp = lock.tryOptimisticRead();
+        double balance = readBalanceHelper(cardNumber, epochDay);
+        if (!lock.validate(stamp)) {
+            // A write happened while reading, read again under the read lock
+            stamp = lock.readLock();
+            try {
+                balance = readBalanceHelper(cardNumber, epochDay);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return balance;
+    }
+
+    // Find the closest previous (or equal) entry of epochDay in a card's slot
+    private double readBalanceHelper(String cardNumber, int epochDay) {
+        int slot = findSlotHelper(cardNumber, false);
+        if (slot < 0) {
+            return Double.NaN;
+        }
+        MappedByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        // Clamp the count, an optimistic read may see a slot mid-write
+        int count = Math.max(0, Math.min(segment.getInt(offset + 8), historyCapacity));
+        boolean truncated = (segment.getInt(offset + 12) & TRUNCATED_FLAG) != 0;
+
+        // Binary search for the last entry on or before epochDay
+        int low = 0;
+        int high = count - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (segment.getInt(offset + SLOT_HEADER_SIZE + mid * ENTRY_SIZE) <= epochDay) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found < 0) {
+            // Before the first entry, unknown if older entries were dropped
+            return truncated ? Double.NaN : 0.0;
+        }
+        return segment.getDouble(offset + SLOT_HEADER_SIZE + found * ENTRY_SIZE + 4);
+    }
+
+    // Linear probing over the slots, returns -1 if not found (or store is full)
+    private int findSlotHelper(String cardNumber, boolean insert) {
+        int hash = cardNumber.hashCode();
+        int start = Math.floorMod(hash * 0x9E3779B9, slotCount);
+        int firstDeleted = -1;
+        for (int i = 0; i < slotCount; i++) {
+            int slot = (start + i) % slotCount;
+            MappedByteBuffer segment = segmentOf(slot);
+            int offset = offsetOf(slot);
+            int state = segment.getInt(offset);
+            if (state == USED_SLOT && segment.getInt(offset + 4) == hash
+                    && hasNumberHelper(segment, offset, cardNumber)) {
+                return slot;
+            }
+            if (state == DELETED_SLOT && firstDeleted < 0) {
+                firstDeleted = slot;
+            }
+            if (state == EMPTY_SLOT) {
+                if (!insert) {
+                    return -1;
+                }
+                return firstDeleted >= 0 ? firstDeleted : slot;
+            }
+        }
+        return insert ? firstDeleted : -1;
+    }
+
+    // Whether a slot holds a card number, the hash only narrows it down
+    // Compared char by char against the mapped bytes, nothing is allocated
+    private boolean hasNumberHelper(MappedByteBuffer segment, int offset, String cardNumber) {
+        if (segment.getInt(offset + 16) != cardNumber.length()) {
+            return false;
+        }
+        for (int i = 0; i < cardNumber.length(); i++) {
+            if (segment.get(offset + NUMBER_OFFSET + i) != (byte) cardNumber.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Card numbers are stored as one byte per char, so only short ASCII numbers fit
+    private static boolean isStorableHelper(String cardNumber) {
+        if (cardNumber.length() > NUMBER_CAPACITY) {
+            return false;
+        }
+        for (int i = 0; i < cardNumber.length(); i++) {
+            if (cardNumber.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // SHA-256 of the identity of every shard's database, in shard order
+    private byte[] databaseIdentityHelper() {
+        List<String> identities = new ArrayList<>();
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            identities.add(shardRouter.onShard(shard, databaseInstanceRepository::findIdentity));
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256")
+                    .digest(String.join(" ", identities).getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static NavigableMap<String, Double> balanceHistoryHelper(String balanceHistoryJson) {
+        if (balanceHistoryJson == null || balanceHistoryJson.isEmpty()) {
+            return new TreeMap<>();
+        }
+        Type type = new TypeToken<TreeMap<String, Double>>() {
+        }.getType();
+        return new Gson().fromJson(balanceHistoryJson, type);
+    }
+
+    private MappedByteBuffer segmentOf(int slot) {
+        return segments[slot / slotsPerSegment];
+    }
+
+    private int offsetOf(int slot) {
+        return (slot % slotsPerSegment) * slotSize;
+    }
+}
@@ -0,0 +1,54 @@
+package com.shepherdmoney.interviewproject.util;
+
+import java.io.Serializable;
+
+import org.hibernate.cache.spi.entry.CacheEntry;
+import org.hibernate.cache.spi.support.AbstractReadWriteAccess;
+
+import com.github.benmanes.caffeine.cache.Weigher;
+
+/**
+ * Approximate heap size in bytes of a Hibernate second-level cache entry, so a
+ * region can be bounded by memory instead of entry count
+ */
+/*
+ * A credit card entry holds its whole balance history JSON, so entries range
+ * from a few hundred bytes to megabytes and a count bound says nothing about
+ * the memory used. Set as policy.maximum.weigher in application.conf
+ */
+public class CacheEntryWeigher implements Weigher<Object, Object> {
+
+    // Object header and fields of an entry or value we don't look into
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int VALUE_OVERHEAD = 16;
+
+    @Override
+    public int weigh(Object key, Object value) {
+        return (int) Math.min(Integer.MAX_VALUE, ENTRY_OVERHEAD + weighHelper(value));
+    }
+
+    private long weighHelper(Object value) {
+        // Read-write regions wrap the entry with its lock state
+        if (value instanceof AbstractReadWriteAccess.Item item) {
+            return VALUE_OVERHEAD + weighHelper(item.getValue());
+        }
+        if (value instanceof CacheEntry cacheEntry) {
+            long weight = VALUE_OVERHEAD;
+            Serializable[] state = cacheEntry.getDisassembledState();
+            if (state != null) {
+                for (Serializable field : state) {
+                    weight += weighHelper(field);
+                }
+            }
+            return weight;
+        }
+        if (value instanceof String string) {
+            // Latin-1 strings take a byte per char, others two
+            return VALUE_OVERHEAD + 2L * string.length();
+        }
+        if (value instanceof byte[] bytes) {
+            return VALUE_OVERHEAD + bytes.length;
+        }
+        return VALUE_OVERHEAD;
+    }
+}
@@ -0,0 +1,49 @@
+package com.shepherdmoney.interviewproject.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key, so only one load per key is in
+ * flight and every concurrent caller shares its result
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    // Run the loader on the executor, or join the load already in flight for key
+    public CompletableFuture<V> execute(K key, Supplier<V> loader, Executor executor) {
+        CompletableFuture<V> load = new CompletableFuture<>();
+        CompletableFuture<V> existingLoad = inFlight.putIfAbsent(key, load);
+        if (existingLoad != null) {
+            return existingLoad;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    V value = loader.get();
+                    // Remove before completing, later callers start a fresh load
+                    inFlight.remove(key, load);
+                    load.complete(value);
+                } catch (Throwable e) {
+                    inFlight.remove(key, load);
+                    load.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Executor is saturated, fail this load and everyone waiting on it
+            inFlight.remove(key, load);
+            load.completeExceptionally(e);
+        }
+        return load;
+    }
+
+    // Number of keys with a load in flight
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+}
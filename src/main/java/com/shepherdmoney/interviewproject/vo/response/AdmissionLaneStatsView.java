@@ -0,0 +1,25 @@
+package com.shepherdmoney.interviewproject.vo.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+@AllArgsConstructor
+public class AdmissionLaneStatsView {
+
+    private String lane;
+
+    private int maxPermits;
+
+    private int permitsInUse;
+
+    private int queueDepth;
+
+    private int maxQueue;
+
+    private long admittedCount;
+
+    private long rejectedCount;
+}
@@ -0,0 +1,17 @@
+package com.shepherdmoney.interviewproject.vo.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+@AllArgsConstructor
+public class BalanceHistoryRowView {
+
+    private String creditCardNumber;
+
+    private String date;
+
+    private double balance;
+}
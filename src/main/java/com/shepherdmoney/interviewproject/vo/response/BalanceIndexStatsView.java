@@ -0,0 +1,27 @@
+package com.shepherdmoney.interviewproject.vo.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+@AllArgsConstructor
+public class BalanceIndexStatsView {
+
+    private boolean ready;
+
+    private int creditCardCount;
+
+    private boolean restoredFromCheckpoint;
+
+    private long loadMillis;
+
+    private int replayedCards;
+
+    private String lastCheckpointAt;
+
+    private long lastCheckpointMillis;
+
+    private String lastCheckpointError;
+}
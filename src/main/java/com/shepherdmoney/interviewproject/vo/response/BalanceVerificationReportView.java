@@ -0,0 +1,37 @@
+package com.shepherdmoney.interviewproject.vo.response;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+@AllArgsConstructor
+public class BalanceVerificationReportView {
+
+    private boolean running;
+
+    private boolean repair;
+
+    private String startedAt;
+
+    private long durationMillis;
+
+    private long cardsChecked;
+
+    private double cardsPerSecond;
+
+    private long mismatchedCards;
+
+    private long repairedCards;
+
+    // Mismatched cards updated while the job ran, not repaired
+    private long skippedRepairs;
+
+    // First mismatched card numbers only
+    private List<String> mismatchedCardNumbers;
+
+    private String error;
+}
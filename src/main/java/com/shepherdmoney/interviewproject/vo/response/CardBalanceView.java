@@ -0,0 +1,15 @@
+package com.shepherdmoney.interviewproject.vo.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+@AllArgsConstructor
+public class CardBalanceView {
+
+    private String creditCardNumber;
+
+    private double balance;
+}
@@ -0,0 +1,29 @@
+package com.shepherdmoney.interviewproject.vo.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+@AllArgsConstructor
+public class ReadModelStatsView {
+
+    private boolean ready;
+
+    private long pendingChanges;
+
+    private long appliedChanges;
+
+    private double lastLagMillis;
+
+    private double maxLagMillis;
+
+    private int userCount;
+
+    private int creditCardCount;
+
+    private long rebuildFailures;
+
+    private String lastRebuildError;
+}
@@ -1,25 +1,48 @@
 package com.shepherdmoney.interviewproject;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
-
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.shepherdmoney.interviewproject.controller.BalanceHistoryExportController;
 import com.shepherdmoney.interviewproject.controller.CreditCardController;
 import com.shepherdmoney.interviewproject.controller.UserController;
 import com.shepherdmoney.interviewproject.model.BalanceHistory;
@@ -27,7 +50,12 @@ import com.shepherdmoney.interviewproject.model.CreditCard;
 import com.shepherdmoney.interviewproject.model.User;
 import com.shepherdmoney.interviewproject.repository.BalanceHistoryRepository;
 import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
+import com.shepherdmoney.interviewproject.repository.CreditCardSnapshot;
 import com.shepherdmoney.interviewproject.repository.UserRepository;
+import com.shepherdmoney.interviewproject.service.BalanceHistoryExportService;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+import com.shepherdmoney.interviewproject.store.CreditCardLocks;
+import com.shepherdmoney.interviewproject.store.IdempotencyIndex;
 import com.shepherdmoney.interviewproject.vo.request.AddCreditCardToUserPayload;
 import com.shepherdmoney.interviewproject.vo.request.CreateUserPayload;
 import com.shepherdmoney.interviewproject.vo.request.UpdateBalancePayload;
@@ -45,12 +73,30 @@ class InterviewProjectApplicationTests {
     @Mock
     private BalanceHistoryRepository balanceHistoryRepository;
 
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Spy
+    private IdempotencyIndex idempotencyIndex = new IdempotencyIndex(1000, Duration.ofMinutes(5), Duration.ofMinutes(1));
+
+    @Spy
+    private ShardRouter shardRouter = new ShardRouter(1);
+
+    @Spy
+    private CreditCardLocks creditCardLocks = new CreditCardLocks();
+
     @InjectMocks
     private UserController userController;
 
     @InjectMocks
     private CreditCardController creditCardController;
 
+    @InjectMocks
+    private BalanceHistoryExportController balanceHistoryExportController;
+
     @SuppressWarnings("null")
     @Test
     public void testCreateUser_Success() {
@@ -72,6 +118,33 @@ class InterviewProjectApplicationTests {
         assert (response.getBody()).equals(newUser.getId());
     }
 
+    @Test
+    public void testCreateUser_FailedShardCopyIsRemovedEverywhere() {
+        // Mock data
+        CreateUserPayload payload = new CreateUserPayload();
+        payload.setName("John Doe");
+        payload.setEmail("john@example.com");
+
+        User newUser = new User();
+        newUser.setId(1);
+        newUser.setName(payload.getName());
+        newUser.setEmail(payload.getEmail());
+
+        when(userRepository.save(any(User.class))).thenReturn(newUser);
+        // Three shards, copying the user to shard 2 fails
+        doReturn(3).when(shardRouter).getShardCount();
+        when(jdbcTemplate.update(anyString(), any(), any(), any())).thenReturn(1)
+                .thenThrow(new RuntimeException());
+
+        ResponseEntity<Integer> response = userController.createUser(payload);
+
+        // Verify that the user was removed from shard 1 and shard 0
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, response.getStatusCode(),
+                "Status code is not INTERNAL SERVER ERROR");
+        verify(jdbcTemplate, times(1)).update("DELETE FROM my_user WHERE id = ?", 1);
+        verify(userRepository, times(1)).deleteById(1);
+    }
+
     @Test
     public void testCreateUser_Exception() {
         // Mock data
@@ -291,7 +364,7 @@ class InterviewProjectApplicationTests {
         when(balanceHistoryRepository.save(any(BalanceHistory.class))).thenReturn(balanceHistory);
 
         // Invoke the controller method
-        ResponseEntity<?> response = creditCardController.updateBalance(new UpdateBalancePayload[] { payload });
+        ResponseEntity<?> response = creditCardController.updateBalance(new UpdateBalancePayload[] { payload }, false, null);
 
         // Verify that the response status code is 200 OK
         assertEquals(HttpStatus.OK, response.getStatusCode(), "Status code is not OK");
@@ -314,7 +387,7 @@ class InterviewProjectApplicationTests {
         when(creditCardRepository.findByNumber(creditCardNumber)).thenReturn(Optional.empty());
 
         // Invoke the controller method
-        ResponseEntity<?> response = creditCardController.updateBalance(new UpdateBalancePayload[] { payload });
+        ResponseEntity<?> response = creditCardController.updateBalance(new UpdateBalancePayload[] { payload }, false, null);
 
         // Verify that the response status code is 400 BAD REQUEST
         assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode(), "Status code is not BAD REQUEST");
@@ -341,9 +414,236 @@ class InterviewProjectApplicationTests {
         when(balanceHistoryRepository.save(any(BalanceHistory.class))).thenThrow(new RuntimeException());
 
         // Invoke the controller method
-        ResponseEntity<?> response = creditCardController.updateBalance(new UpdateBalancePayload[] { payload });
+        ResponseEntity<?> response = creditCardController.updateBalance(new UpdateBalancePayload[] { payload }, false, null);
 
         // Verify that the response status code is 400 BAD REQUEST
         assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode(), "Status code is not BAD REQUEST");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testUpdateBalance_CompactSkipsRedundantBalance() {
+        // Mock data
+        String creditCardNumber = "1234567890";
+
+        UpdateBalancePayload payload = new UpdateBalancePayload();
+        payload.setCreditCardNumber(creditCardNumber);
+        payload.setBalanceDate(LocalDate.of(2024, 1, 5));
+        payload.setBalanceAmount(100.0);
+
+        // Credit card already has a balance of 100 in effect since 2024-01-01
+        CreditCard creditCard = new CreditCard();
+        creditCard.addBalanceHistory(new BalanceHistory(LocalDate.of(2024, 1, 1), 100.0));
+
+        when(creditCardRepository.findByNumber(creditCardNumber)).thenReturn(Optional.of(creditCard));
+
+        // Invoke the controller method in compact mode
+        ResponseEntity<?> response = creditCardController.updateBalance(new UpdateBalancePayload[] { payload }, true, null);
+
+        // Verify that the redundant balance was not stored
+        assertEquals(HttpStatus.OK, response.getStatusCode(), "Status code is not OK");
+        verify(balanceHistoryRepository, never()).save(any(BalanceHistory.class));
+        assertEquals(1, creditCard.getBalanceHistory().size(), "Redundant balance was stored");
+    }
+
+    @Test
+    public void testAddBalanceHistory_CompactResplitsOnBackdatedChange() {
+        // Same balance reported every day, plus one back-dated correction
+        CreditCard compactCard = new CreditCard();
+        CreditCard fullCard = new CreditCard();
+        for (int day = 1; day <= 10; day++) {
+            compactCard.addBalanceHistory(new BalanceHistory(LocalDate.of(2024, 1, day), 100.0), true);
+            fullCard.addBalanceHistory(new BalanceHistory(LocalDate.of(2024, 1, day), 100.0));
+        }
+        compactCard.addBalanceHistory(new BalanceHistory(LocalDate.of(2024, 1, 4), 150.0), true);
+        fullCard.addBalanceHistory(new BalanceHistory(LocalDate.of(2024, 1, 4), 150.0));
+
+        // Verify that the compact history is smaller but reads the same balances
+        assertEquals(2, compactCard.getBalanceHistory().size(), "Compact history was not compacted");
+        for (int day = 1; day <= 12; day++) {
+            LocalDate date = LocalDate.of(2024, 1, day);
+            assertEquals(fullCard.getBalanceOnDate(date), compactCard.getBalanceOnDate(date),
+                    "Balance on " + date + " is incorrect");
+        }
+    }
+
+    @Test
+    public void testUpdateBalance_IdempotentReplay() {
+        // Mock data
+        String creditCardNumber = "1234567890";
+
+        UpdateBalancePayload payload = new UpdateBalancePayload();
+        payload.setCreditCardNumber(creditCardNumber);
+        payload.setBalanceDate(LocalDate.now());
+        payload.setBalanceAmount(100.0);
+
+        CreditCard creditCard = new CreditCard();
+        when(creditCardRepository.findByNumber(creditCardNumber)).thenReturn(Optional.of(creditCard));
+        when(balanceHistoryRepository.save(any(BalanceHistory.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        // Send the same batch twice with the same idempotency key
+        ResponseEntity<?> response = creditCardController.updateBalance(new UpdateBalancePayload[] { payload },
+                false, "batch-1");
+        ResponseEntity<?> replayedResponse = creditCardController
+                .updateBalance(new UpdateBalancePayload[] { payload }, false, "batch-1");
+
+        // Verify that the replay returned the original result without touching the database
+        assertEquals(HttpStatus.OK, replayedResponse.getStatusCode(), "Status code is not OK");
+        assertEquals(response.getBody(), replayedResponse.getBody(), "Replayed result is incorrect");
+        assertEquals("true", replayedResponse.getHeaders().getFirst("Idempotent-Replayed"));
+        // Looked up once to check the batch and once to apply it
+        verify(creditCardRepository, times(2)).findByNumber(creditCardNumber);
+        verify(balanceHistoryRepository, times(1)).save(any(BalanceHistory.class));
+    }
+
+    @Test
+    public void testUpdateBalance_IdempotencyKeyReusedWithDifferentPayload() {
+        // Mock data
+        UpdateBalancePayload payload = new UpdateBalancePayload();
+        payload.setCreditCardNumber("1234567890");
+        payload.setBalanceDate(LocalDate.now());
+        payload.setBalanceAmount(100.0);
+
+        UpdateBalancePayload otherPayload = new UpdateBalancePayload();
+        otherPayload.setCreditCardNumber("1234567890");
+        otherPayload.setBalanceDate(LocalDate.now());
+        otherPayload.setBalanceAmount(200.0);
+
+        when(creditCardRepository.findByNumber("1234567890")).thenReturn(Optional.of(new CreditCard()));
+
+        creditCardController.updateBalance(new UpdateBalancePayload[] { payload }, false, "batch-1");
+        ResponseEntity<?> response = creditCardController.updateBalance(new UpdateBalancePayload[] { otherPayload },
+                false, "batch-1");
+
+        // Verify that the second batch was rejected
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, response.getStatusCode(), "Status code is not UNPROCESSABLE ENTITY");
+        verify(creditCardRepository, times(2)).findByNumber("1234567890");
+    }
+
+    @Test
+    public void testUpdateBalance_FailedBatchCanBeRetried() {
+        // Mock data
+        UpdateBalancePayload payload = new UpdateBalancePayload();
+        payload.setCreditCardNumber("1234567890");
+        payload.setBalanceDate(LocalDate.now());
+        payload.setBalanceAmount(100.0);
+
+        when(creditCardRepository.findByNumber("1234567890")).thenReturn(Optional.of(new CreditCard()));
+        // First attempt fails, retry succeeds
+        when(balanceHistoryRepository.save(any(BalanceHistory.class))).thenThrow(new RuntimeException())
+                .thenAnswer(invocation -> invocation.getArgument(0));
+
+        ResponseEntity<?> response = creditCardController.updateBalance(new UpdateBalancePayload[] { payload },
+                false, "batch-1");
+        ResponseEntity<?> retriedResponse = creditCardController
+                .updateBalance(new UpdateBalancePayload[] { payload }, false, "batch-1");
+
+        // Verify that the retry was applied
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode(), "Status code is not BAD REQUEST");
+        assertEquals(HttpStatus.OK, retriedResponse.getStatusCode(), "Status code is not OK");
+        verify(balanceHistoryRepository, times(2)).save(any(BalanceHistory.class));
+    }
+
+    @Test
+    public void testUpdateBalance_UnknownCardAppliesNothing() {
+        // Mock data
+        UpdateBalancePayload payload = new UpdateBalancePayload();
+        payload.setCreditCardNumber("1234567890");
+        payload.setBalanceDate(LocalDate.now());
+        payload.setBalanceAmount(100.0);
+
+        UpdateBalancePayload unknownCardPayload = new UpdateBalancePayload();
+        unknownCardPayload.setCreditCardNumber("0000000000");
+        unknownCardPayload.setBalanceDate(LocalDate.now());
+        unknownCardPayload.setBalanceAmount(200.0);
+
+        // Cards are checked in no particular order, the known card may not be looked up
+        lenient().when(creditCardRepository.findByNumber("1234567890")).thenReturn(Optional.of(new CreditCard()));
+        when(creditCardRepository.findByNumber("0000000000")).thenReturn(Optional.empty());
+
+        ResponseEntity<?> response = creditCardController
+                .updateBalance(new UpdateBalancePayload[] { payload, unknownCardPayload }, false, null);
+
+        // Verify that the known card's balance was not applied either
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode(), "Status code is not BAD REQUEST");
+        verify(balanceHistoryRepository, never()).save(any(BalanceHistory.class));
+    }
+
+    @Test
+    public void testExportHistory_NdjsonRowsBetweenDates() throws Exception {
+        // Mock data
+        mockExportedCardHelper("1234567890",
+                "{\"2024-01-01\":100.0,\"2024-01-10\":250.0,\"2024-01-20\":300.0,\"2024-02-01\":50.0}");
+
+        MvcResult result = exportHelper(get("/credit-card:export-history")
+                .param("creditCardNumber", "1234567890")
+                .param("from", "2024-01-05")
+                .param("to", "2024-01-20"));
+
+        // Verify that only the rows between the dates were streamed, uncompressed
+        assertNull(result.getResponse().getHeader("Content-Encoding"));
+        assertEquals("{\"creditCardNumber\":\"1234567890\",\"date\":\"2024-01-10\",\"balance\":250.0}\n"
+                + "{\"creditCardNumber\":\"1234567890\",\"date\":\"2024-01-20\",\"balance\":300.0}\n",
+                result.getResponse().getContentAsString());
+    }
+
+    @Test
+    public void testExportHistory_GzipCsv() throws Exception {
+        // Mock data
+        mockExportedCardHelper("1234567890", "{\"2024-01-01\":100.0,\"2024-01-10\":250.0}");
+
+        MvcResult result = exportHelper(get("/credit-card:export-history")
+                .param("creditCardNumber", "1234567890")
+                .param("format", "csv")
+                .header("Accept-Encoding", "deflate, gzip;q=0.8"));
+
+        // Verify that the CSV rows were streamed gzip compressed
+        assertEquals("gzip", result.getResponse().getHeader("Content-Encoding"));
+        byte[] csv = new GZIPInputStream(new ByteArrayInputStream(result.getResponse().getContentAsByteArray()))
+                .readAllBytes();
+        assertEquals("credit_card_number,date,balance\n"
+                + "1234567890,2024-01-01,100.0\n"
+                + "1234567890,2024-01-10,250.0\n", new String(csv, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testExportHistory_GzipRefusedWithZeroQuality() throws Exception {
+        // Mock data
+        mockExportedCardHelper("1234567890", "{\"2024-01-01\":100.0}");
+
+        MvcResult result = exportHelper(get("/credit-card:export-history")
+                .param("creditCardNumber", "1234567890")
+                .param("format", "csv")
+                .header("Accept-Encoding", "gzip;q=0, identity"));
+
+        // Verify that the export was not compressed
+        assertNull(result.getResponse().getHeader("Content-Encoding"));
+        assertEquals("credit_card_number,date,balance\n1234567890,2024-01-01,100.0\n",
+                result.getResponse().getContentAsString());
+    }
+
+    private void mockExportedCardHelper(String creditCardNumber, String balanceHistoryJson) {
+        CreditCard creditCard = new CreditCard();
+        creditCard.setNumber(creditCardNumber);
+        when(creditCardRepository.findByNumber(creditCardNumber)).thenReturn(Optional.of(creditCard));
+        when(creditCardRepository.streamSnapshotsByNumber(creditCardNumber))
+                .thenReturn(Stream.of(new CreditCardSnapshot(1, creditCardNumber, balanceHistoryJson)));
+    }
+
+    // Perform an export request and wait for its streamed body
+    private MvcResult exportHelper(RequestBuilder exportRequest) throws Exception {
+        BalanceHistoryExportService balanceHistoryExportService = new BalanceHistoryExportService();
+        ReflectionTestUtils.setField(balanceHistoryExportService, "creditCardRepository", creditCardRepository);
+        ReflectionTestUtils.setField(balanceHistoryExportService, "shardRouter", shardRouter);
+        ReflectionTestUtils.setField(balanceHistoryExportService, "transactionManager", transactionManager);
+        ReflectionTestUtils.setField(balanceHistoryExportController, "balanceHistoryExportService",
+                balanceHistoryExportService);
+        ReflectionTestUtils.setField(balanceHistoryExportController, "exportTimeout", Duration.ofMinutes(1));
+        MockMvc mockMvc = MockMvcBuilders.standaloneSetup(balanceHistoryExportController).build();
+
+        MvcResult result = mockMvc.perform(exportRequest).andExpect(request().asyncStarted()).andReturn();
+        result.getAsyncResult();
+        mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+                .andExpect(header().string("Vary", "Accept-Encoding"));
+        return result;
+    }
+}
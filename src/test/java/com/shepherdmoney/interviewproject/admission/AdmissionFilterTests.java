@@ -0,0 +1,91 @@
+package com.shepherdmoney.interviewproject.admission;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.shepherdmoney.interviewproject.vo.response.AdmissionLaneStatsView;
+
+class AdmissionFilterTests {
+
+    // read: 2 permits, ingest: 4 permits of 100 bytes, export: 1 permit, no queues
+    private final AdmissionFilter admissionFilter = new AdmissionFilter(2, 0, Duration.ZERO, 4, 0, Duration.ZERO,
+            100, 1, 0, Duration.ZERO);
+
+    @Test
+    public void testLaneAndWeight() {
+        MockHttpServletRequest upload = new MockHttpServletRequest("POST", "/credit-card:update-balance");
+        upload.setContent(new byte[250]);
+        MockHttpServletRequest read = new MockHttpServletRequest("GET", "/credit-card:balance");
+        MockHttpServletRequest export = new MockHttpServletRequest("GET", "/credit-card:export-history");
+        MockHttpServletRequest createUser = new MockHttpServletRequest("PUT", "/user");
+
+        AdmissionLane ingestLane = admissionFilter.laneOf(upload);
+        assertEquals("ingest", ingestLane.getName());
+        assertEquals("read", admissionFilter.laneOf(read).getName());
+        assertEquals("export", admissionFilter.laneOf(export).getName());
+        assertNull(admissionFilter.laneOf(createUser), "Unlimited endpoint was given a lane");
+
+        // One permit per started 100 bytes, reads always take one
+        assertEquals(3, admissionFilter.weightOf(upload, ingestLane));
+        assertEquals(1, admissionFilter.weightOf(read, admissionFilter.laneOf(read)));
+    }
+
+    @Test
+    public void testRejectsWhenLaneIsFull() throws Exception {
+        // Hold the only export permit with a request blocked in the controller
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> {
+            try {
+                admissionFilter.doFilter(new MockHttpServletRequest("GET", "/credit-card:export-history"),
+                        new MockHttpServletResponse(), (request, response) -> {
+                            entered.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        });
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        // A second export is rejected without reaching the controller
+        MockHttpServletResponse rejected = new MockHttpServletResponse();
+        MockFilterChain rejectedChain = new MockFilterChain();
+        admissionFilter.doFilter(new MockHttpServletRequest("GET", "/credit-card:export-history"), rejected,
+                rejectedChain);
+        assertEquals(429, rejected.getStatus());
+        assertEquals("1", rejected.getHeader("Retry-After"));
+        assertNull(rejectedChain.getRequest(), "Rejected request reached the controller");
+
+        // Reads have their own lane and still get in
+        MockHttpServletResponse read = new MockHttpServletResponse();
+        admissionFilter.doFilter(new MockHttpServletRequest("GET", "/credit-card:balance"), read,
+                new MockFilterChain());
+        assertEquals(200, read.getStatus());
+
+        release.countDown();
+        blocked.get(5, TimeUnit.SECONDS);
+
+        // Permits were released once the requests completed
+        AdmissionLaneStatsView exportStats = admissionFilter.getStats().get(2);
+        assertEquals(0, exportStats.getPermitsInUse());
+        assertEquals(1, exportStats.getAdmittedCount());
+        assertEquals(1, exportStats.getRejectedCount());
+        assertEquals(0, admissionFilter.getStats().get(0).getPermitsInUse());
+    }
+}
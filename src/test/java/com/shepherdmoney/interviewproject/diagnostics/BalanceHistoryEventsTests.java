@@ -0,0 +1,63 @@
+package com.shepherdmoney.interviewproject.diagnostics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.shepherdmoney.interviewproject.model.BalanceHistory;
+import com.shepherdmoney.interviewproject.model.CreditCard;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+class BalanceHistoryEventsTests {
+
+    @Test
+    public void testBackdatedBalanceEmitsEvents() throws Exception {
+        CreditCard creditCard = new CreditCard();
+        creditCard.setId(7);
+
+        Path file = Files.createTempFile("balance-history-events-", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(BalanceHistoryShiftEvent.class).withThreshold(Duration.ZERO);
+            recording.enable(BalanceHistoryDeserializeEvent.class).withThreshold(Duration.ZERO);
+            recording.start();
+
+            creditCard.addBalanceHistory(balanceHelper(LocalDate.of(2024, 1, 2), 100));
+            creditCard.addBalanceHistory(balanceHelper(LocalDate.of(2024, 1, 3), 200));
+            // Back-dated, shifts both later records
+            creditCard.addBalanceHistory(balanceHelper(LocalDate.of(2024, 1, 1), 50));
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.deleteIfExists(file);
+        RecordedEvent lastShift = events.stream()
+                .filter(event -> event.getEventType().getName().equals("com.shepherdmoney.BalanceHistoryShift"))
+                .reduce((first, second) -> second).orElseThrow();
+        assertEquals(7, lastShift.getInt("cardId"));
+        assertEquals(2, lastShift.getInt("entriesTouched"));
+        // Records before the back-dated one is added
+        assertEquals(2, lastShift.getInt("historySize"));
+        assertTrue(events.stream().anyMatch(
+                event -> event.getEventType().getName().equals("com.shepherdmoney.BalanceHistoryDeserialize")),
+                "Deserialize event was not recorded");
+    }
+
+    private BalanceHistory balanceHelper(LocalDate date, double balance) {
+        BalanceHistory balanceHistory = new BalanceHistory();
+        balanceHistory.setDate(date);
+        balanceHistory.setBalance(balance);
+        return balanceHistory;
+    }
+}
@@ -0,0 +1,141 @@
+package com.shepherdmoney.interviewproject.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.shepherdmoney.interviewproject.repository.BalanceHistoryEntry;
+import com.shepherdmoney.interviewproject.repository.BalanceHistoryRepository;
+import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
+import com.shepherdmoney.interviewproject.repository.CreditCardSnapshot;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+import com.shepherdmoney.interviewproject.store.CreditCardLocks;
+
+@ExtendWith(MockitoExtension.class)
+class BalanceVerificationServiceTests {
+
+    @Mock
+    private CreditCardRepository creditCardRepository;
+
+    @Mock
+    private BalanceHistoryRepository balanceHistoryRepository;
+
+    private BalanceVerificationService balanceVerificationService;
+
+    // Records of cards 1 to 3: 100 on Jan 1, back-dated 50 on Dec 31 shifts Jan 1 to 150
+    private final List<BalanceHistoryEntry> entries = List.of(
+            new BalanceHistoryEntry(1, LocalDate.of(2024, 1, 1), 100.0),
+            new BalanceHistoryEntry(1, LocalDate.of(2023, 12, 31), 50.0),
+            new BalanceHistoryEntry(2, LocalDate.of(2024, 1, 1), 100.0),
+            new BalanceHistoryEntry(2, LocalDate.of(2023, 12, 31), 50.0),
+            new BalanceHistoryEntry(3, LocalDate.of(2024, 1, 1), 100.0),
+            new BalanceHistoryEntry(3, LocalDate.of(2024, 1, 2), 100.0));
+
+    @BeforeEach
+    public void setUp() {
+        // Chunks of 2 cards, so the 3 cards are read in 2 chunks
+        balanceVerificationService = new BalanceVerificationService(2, 2);
+        ReflectionTestUtils.setField(balanceVerificationService, "creditCardRepository", creditCardRepository);
+        ReflectionTestUtils.setField(balanceVerificationService, "balanceHistoryRepository",
+                balanceHistoryRepository);
+        ReflectionTestUtils.setField(balanceVerificationService, "shardRouter", new ShardRouter(1));
+        ReflectionTestUtils.setField(balanceVerificationService, "creditCardLocks", new CreditCardLocks());
+
+        // Not used by the tests which don't run the job
+        lenient().when(balanceHistoryRepository.findEntriesByCreditCardIds(any())).thenAnswer(invocation -> {
+            Collection<Integer> creditCardIds = invocation.getArgument(0);
+            return entries.stream().filter(entry -> creditCardIds.contains(entry.creditCardId())).toList();
+        });
+    }
+
+    @AfterEach
+    public void tearDown() {
+        balanceVerificationService.close();
+    }
+
+    @Test
+    public void testVerifyAll_RepairsDriftedCards() {
+        when(creditCardRepository.findSnapshotsAfterId(eq(0), any(Pageable.class))).thenReturn(List.of(
+                // Matches its records
+                new CreditCardSnapshot(1, "1111", "{\"2023-12-31\":50.0,\"2024-01-01\":150.0}"),
+                // Lost the back-dated update
+                new CreditCardSnapshot(2, "2222", "{\"2024-01-01\":100.0}")));
+        when(creditCardRepository.findSnapshotsAfterId(eq(2), any(Pageable.class))).thenReturn(List.of(
+                // Stored compact, the repeated balance on Jan 2 was dropped
+                new CreditCardSnapshot(3, "3333", "{\"2024-01-01\":100.0}")));
+        when(creditCardRepository.updateBalanceHistoryJsonIfUnchanged(2, "{\"2024-01-01\":100.0}",
+                "{\"2023-12-31\":50.0,\"2024-01-01\":150.0}")).thenReturn(1);
+
+        balanceVerificationService.start(true);
+        waitForRunHelper();
+
+        assertEquals(3, balanceVerificationService.getReport().get().getCardsChecked());
+        assertEquals(List.of("2222"), balanceVerificationService.getReport().get().getMismatchedCardNumbers());
+        assertEquals(1, balanceVerificationService.getReport().get().getRepairedCards());
+        assertEquals(0, balanceVerificationService.getReport().get().getSkippedRepairs());
+    }
+
+    @Test
+    public void testVerifyAll_SkipsCardsUpdatedSinceRead() {
+        when(creditCardRepository.findSnapshotsAfterId(eq(0), any(Pageable.class))).thenReturn(List.of(
+                new CreditCardSnapshot(2, "2222", null)));
+        // Written to after the chunk was read
+        when(creditCardRepository.updateBalanceHistoryJsonIfUnchanged(eq(2), eq(""), anyString())).thenReturn(0);
+
+        balanceVerificationService.start(true);
+        waitForRunHelper();
+
+        assertEquals(1, balanceVerificationService.getReport().get().getMismatchedCards());
+        assertEquals(0, balanceVerificationService.getReport().get().getRepairedCards());
+        assertEquals(1, balanceVerificationService.getReport().get().getSkippedRepairs());
+    }
+
+    @Test
+    public void testVerifyAll_ReportOnlyWithoutRepair() {
+        when(creditCardRepository.findSnapshotsAfterId(eq(0), any(Pageable.class))).thenReturn(List.of(
+                new CreditCardSnapshot(2, "2222", null)));
+
+        balanceVerificationService.start(false);
+        waitForRunHelper();
+
+        assertEquals(1, balanceVerificationService.getReport().get().getMismatchedCards());
+        verify(creditCardRepository, never()).updateBalanceHistoryJsonIfUnchanged(anyInt(), anyString(), anyString());
+    }
+
+    @Test
+    public void testIsRepairSafe_RefusesRecordsOutsideTheirShardRange() {
+        ReflectionTestUtils.setField(balanceVerificationService, "shardRouter", new ShardRouter(2));
+        // Shard 1 holds a record with an id of shard 0's range
+        when(balanceHistoryRepository.countOutsideIdRange(0, (1 << 24) - 1)).thenReturn(0L);
+        when(balanceHistoryRepository.countOutsideIdRange(1 << 24, (2 << 24) - 1)).thenReturn(1L);
+
+        assertEquals(false, balanceVerificationService.isRepairSafe());
+    }
+
+    private void waitForRunHelper() {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (balanceVerificationService.getReport().get().isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+        assertEquals(null, balanceVerificationService.getReport().get().getError());
+    }
+}
@@ -0,0 +1,44 @@
+package com.shepherdmoney.interviewproject.shard;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ShardRouterTests {
+
+    @Test
+    public void testShardOf_StableAndInRange() {
+        ShardRouter shardRouter = new ShardRouter(3);
+        int[] cardsPerShard = new int[3];
+        for (int i = 0; i < 3000; i++) {
+            String cardNumber = String.format("4000%012d", i);
+            int shard = shardRouter.shardOf(cardNumber);
+            assertTrue(shard >= 0 && shard < 3, "Shard out of range");
+            assertEquals(shard, new ShardRouter(3).shardOf(cardNumber), "Shard of a card changed");
+            cardsPerShard[shard]++;
+        }
+        // Sequential card numbers are spread over every shard
+        for (int count : cardsPerShard) {
+            assertTrue(count > 500, "Shards are unbalanced");
+        }
+    }
+
+    @Test
+    public void testOnShard_RestoresPreviousShard() {
+        ShardRouter shardRouter = new ShardRouter(3);
+        int innerShard = shardRouter.onShard(1, () -> shardRouter.onShard(2, ShardRouter::currentShard));
+        assertEquals(2, innerShard);
+        assertNull(ShardRouter.currentShard(), "Shard leaked out of onShard");
+    }
+
+    @Test
+    public void testFanOut_QueriesEveryShard() {
+        ShardRouter shardRouter = new ShardRouter(3);
+        List<Integer> shards = shardRouter.fanOut(() -> List.of(ShardRouter.currentShard()));
+        assertEquals(List.of(0, 1, 2), shards);
+    }
+}
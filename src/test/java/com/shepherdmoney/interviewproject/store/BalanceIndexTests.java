@@ -0,0 +1,207 @@
+package com.shepherdmoney.interviewproject.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.shepherdmoney.interviewproject.model.CreditCard;
+import com.shepherdmoney.interviewproject.repository.BalanceHistoryRepository;
+import com.shepherdmoney.interviewproject.repository.CreditCardKey;
+import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
+import com.shepherdmoney.interviewproject.repository.CreditCardSnapshot;
+import com.shepherdmoney.interviewproject.repository.DatabaseInstanceRepository;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+import com.shepherdmoney.interviewproject.vo.response.CardBalanceView;
+
+class BalanceIndexTests {
+
+    @Test
+    public void testFindBalancesOver_HighestFirstAndExclusive() {
+        BalanceIndex balanceIndex = new BalanceIndex();
+        balanceIndex.update("1111", 100.0);
+        balanceIndex.update("2222", 300.0);
+        balanceIndex.update("3333", 200.0);
+        balanceIndex.update("4444", 200.0);
+
+        assertEquals(List.of(new CardBalanceView("2222", 300.0), new CardBalanceView("3333", 200.0),
+                new CardBalanceView("4444", 200.0)), balanceIndex.findBalancesOver(100.0, 10));
+        assertEquals(List.of(new CardBalanceView("2222", 300.0)), balanceIndex.findBalancesOver(200.0, 10));
+        assertEquals(List.of(new CardBalanceView("2222", 300.0)), balanceIndex.findBalancesOver(0.0, 1));
+    }
+
+    @Test
+    public void testUpdate_MovesCardToNewBalance() {
+        BalanceIndex balanceIndex = new BalanceIndex();
+        balanceIndex.update("1111", 100.0);
+        balanceIndex.update("2222", 300.0);
+
+        // Current balance is the last record of the history
+        TreeMap<String, Double> balanceHistory = new TreeMap<>();
+        balanceHistory.put("2024-01-01", 900.0);
+        balanceHistory.put("2024-01-02", 500.0);
+        balanceIndex.update("1111", balanceHistory);
+
+        assertEquals(List.of(new CardBalanceView("1111", 500.0), new CardBalanceView("2222", 300.0)),
+                balanceIndex.findTopBalances(10));
+        assertEquals(2, balanceIndex.size());
+
+        balanceIndex.remove("1111");
+        assertEquals(List.of(new CardBalanceView("2222", 300.0)), balanceIndex.findTopBalances(10));
+    }
+
+    @Test
+    public void testCheckpoint_RestoreReplaysChangesSinceCheckpoint(@TempDir Path dir) {
+        Path checkpointPath = dir.resolve("balance-index.checkpoint");
+        BalanceHistoryRepository balanceHistoryRepository = mock(BalanceHistoryRepository.class);
+        BalanceIndex balanceIndex = checkpointedIndexHelper(checkpointPath, mock(CreditCardRepository.class),
+                balanceHistoryRepository);
+        balanceIndex.load();
+        balanceIndex.update("1111", 100.0);
+        balanceIndex.update("2222", 200.0);
+        balanceIndex.update("3333", 300.0);
+        // Highest balance record when the checkpoint is taken, and an update in progress
+        when(balanceHistoryRepository.findMaxIdBetween(1, Integer.MAX_VALUE)).thenReturn(40);
+        balanceIndex.beginUpdate("5555");
+        assertTrue(balanceIndex.checkpoint());
+
+        // Since the checkpoint: 2222 changed, 3333 was deleted, 4444 was added and
+        // the update of 5555 was applied
+        CreditCardRepository creditCardRepository = mock(CreditCardRepository.class);
+        balanceHistoryRepository = mock(BalanceHistoryRepository.class);
+        when(balanceHistoryRepository.findCreditCardIdsWithEntriesBetween(40, Integer.MAX_VALUE))
+                .thenReturn(List.of(2));
+        when(creditCardRepository.findSnapshotsByIds(List.of(2)))
+                .thenReturn(List.of(new CreditCardSnapshot(2, "2222", "{\"2024-01-01\":250.0}")));
+        CreditCard updatingCard = new CreditCard();
+        updatingCard.setBalanceHistoryJson("{\"2024-01-01\":50.0}");
+        when(creditCardRepository.findByNumber("5555")).thenReturn(Optional.of(updatingCard));
+        when(creditCardRepository.findKeysAfterId(eq(0), any())).thenReturn(List.of(new CreditCardKey(1, "1111"),
+                new CreditCardKey(2, "2222"), new CreditCardKey(4, "4444"), new CreditCardKey(5, "5555")));
+        when(creditCardRepository.findSnapshotsByIds(List.of(4)))
+                .thenReturn(List.of(new CreditCardSnapshot(4, "4444", null)));
+
+        when(balanceHistoryRepository.findMaxIdBetween(1, Integer.MAX_VALUE)).thenReturn(45);
+
+        BalanceIndex restoredIndex = checkpointedIndexHelper(checkpointPath, creditCardRepository,
+                balanceHistoryRepository);
+        restoredIndex.load();
+
+        assertTrue(restoredIndex.getStats().isRestoredFromCheckpoint());
+        assertEquals(2, restoredIndex.getStats().getReplayedCards());
+        assertEquals(List.of(new CardBalanceView("2222", 250.0), new CardBalanceView("1111", 100.0),
+                new CardBalanceView("5555", 50.0), new CardBalanceView("4444", 0.0)),
+                restoredIndex.findTopBalances(10));
+    }
+
+    @Test
+    public void testCheckpoint_DamagedCheckpointLoadsFromDatabase(@TempDir Path dir) throws Exception {
+        Path checkpointPath = dir.resolve("balance-index.checkpoint");
+        Files.write(checkpointPath, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        CreditCardRepository creditCardRepository = mock(CreditCardRepository.class);
+        when(creditCardRepository.findSnapshotsAfterId(anyInt(), any()))
+                .thenReturn(List.of(new CreditCardSnapshot(1, "1111", "{\"2024-01-01\":100.0}")))
+                .thenReturn(List.of());
+
+        BalanceIndex balanceIndex = checkpointedIndexHelper(checkpointPath, creditCardRepository,
+                mock(BalanceHistoryRepository.class));
+        balanceIndex.load();
+
+        assertFalse(balanceIndex.getStats().isRestoredFromCheckpoint());
+        assertEquals(List.of(new CardBalanceView("1111", 100.0)), balanceIndex.findTopBalances(10));
+    }
+
+    @Test
+    public void testCheckpoint_CheckpointOfAnotherDatabaseLoadsFromDatabase(@TempDir Path dir) {
+        Path checkpointPath = dir.resolve("balance-index.checkpoint");
+        BalanceIndex balanceIndex = checkpointedIndexHelper(checkpointPath, mock(CreditCardRepository.class),
+                mock(BalanceHistoryRepository.class));
+        balanceIndex.load();
+        balanceIndex.update("1111", 100.0);
+        assertTrue(balanceIndex.checkpoint());
+
+        // Same URL, recreated database
+        CreditCardRepository creditCardRepository = mock(CreditCardRepository.class);
+        when(creditCardRepository.findSnapshotsAfterId(anyInt(), any())).thenReturn(List.of());
+        BalanceIndex restoredIndex = checkpointedIndexHelper(checkpointPath, creditCardRepository,
+                mock(BalanceHistoryRepository.class), "jdbc:h2:file:~/database#other-instance");
+        restoredIndex.load();
+
+        assertFalse(restoredIndex.getStats().isRestoredFromCheckpoint());
+        assertEquals(0, restoredIndex.size());
+    }
+
+    @Test
+    public void testCheckpoint_MarksAboveDatabaseLoadFromDatabase(@TempDir Path dir) {
+        Path checkpointPath = dir.resolve("balance-index.checkpoint");
+        BalanceHistoryRepository balanceHistoryRepository = mock(BalanceHistoryRepository.class);
+        BalanceIndex balanceIndex = checkpointedIndexHelper(checkpointPath, mock(CreditCardRepository.class),
+                balanceHistoryRepository);
+        balanceIndex.load();
+        balanceIndex.update("1111", 100.0);
+        when(balanceHistoryRepository.findMaxIdBetween(1, Integer.MAX_VALUE)).thenReturn(40);
+        assertTrue(balanceIndex.checkpoint());
+
+        // The database lost the records after id 30
+        balanceHistoryRepository = mock(BalanceHistoryRepository.class);
+        when(balanceHistoryRepository.findMaxIdBetween(1, Integer.MAX_VALUE)).thenReturn(30);
+        CreditCardRepository creditCardRepository = mock(CreditCardRepository.class);
+        when(creditCardRepository.findSnapshotsAfterId(anyInt(), any()))
+                .thenReturn(List.of(new CreditCardSnapshot(1, "1111", "{\"2024-01-01\":80.0}")))
+                .thenReturn(List.of());
+        BalanceIndex restoredIndex = checkpointedIndexHelper(checkpointPath, creditCardRepository,
+                balanceHistoryRepository);
+        restoredIndex.load();
+
+        assertFalse(restoredIndex.getStats().isRestoredFromCheckpoint());
+        assertEquals(List.of(new CardBalanceView("1111", 80.0)), restoredIndex.findTopBalances(10));
+    }
+
+    @Test
+    public void testCheckpoint_NoCheckpointForCreatedSchema(@TempDir Path dir) {
+        Path checkpointPath = dir.resolve("balance-index.checkpoint");
+        BalanceIndex balanceIndex = checkpointedIndexHelper(checkpointPath, mock(CreditCardRepository.class),
+                mock(BalanceHistoryRepository.class));
+        ReflectionTestUtils.setField(balanceIndex, "ddlAuto", "create");
+        balanceIndex.load();
+        balanceIndex.update("1111", 100.0);
+
+        // Nothing could ever be restored from it
+        assertFalse(balanceIndex.checkpoint());
+        balanceIndex.close();
+        assertFalse(Files.exists(checkpointPath));
+    }
+
+    private BalanceIndex checkpointedIndexHelper(Path checkpointPath, CreditCardRepository creditCardRepository,
+            BalanceHistoryRepository balanceHistoryRepository) {
+        return checkpointedIndexHelper(checkpointPath, creditCardRepository, balanceHistoryRepository,
+                "jdbc:h2:file:~/database#instance");
+    }
+
+    private BalanceIndex checkpointedIndexHelper(Path checkpointPath, CreditCardRepository creditCardRepository,
+            BalanceHistoryRepository balanceHistoryRepository, String databaseIdentity) {
+        DatabaseInstanceRepository databaseInstanceRepository = mock(DatabaseInstanceRepository.class);
+        when(databaseInstanceRepository.findIdentity()).thenReturn(databaseIdentity);
+        BalanceIndex balanceIndex = new BalanceIndex();
+        ReflectionTestUtils.setField(balanceIndex, "databaseInstanceRepository", databaseInstanceRepository);
+        ReflectionTestUtils.setField(balanceIndex, "creditCardRepository", creditCardRepository);
+        ReflectionTestUtils.setField(balanceIndex, "balanceHistoryRepository", balanceHistoryRepository);
+        ReflectionTestUtils.setField(balanceIndex, "shardRouter", new ShardRouter(1));
+        ReflectionTestUtils.setField(balanceIndex, "checkpointPath", checkpointPath.toString());
+        return balanceIndex;
+    }
+}
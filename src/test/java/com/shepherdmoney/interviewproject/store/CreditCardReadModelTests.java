@@ -0,0 +1,129 @@
+package com.shepherdmoney.interviewproject.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Pageable;
+
+import com.shepherdmoney.interviewproject.repository.CreditCardOwnerSnapshot;
+import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
+import com.shepherdmoney.interviewproject.repository.UserRepository;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+import com.shepherdmoney.interviewproject.vo.response.CreditCardView;
+
+class CreditCardReadModelTests {
+
+    private CreditCardReadModel readModel;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        // Empty database
+        readModel = new CreditCardReadModel(mock(UserRepository.class), mock(CreditCardRepository.class),
+                new ShardRouter(1), Duration.ofMillis(100));
+        readModel.rebuild();
+        readModel.awaitCaughtUp();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        readModel.close();
+    }
+
+    @Test
+    public void testPublish_AppliedToEveryTable() throws Exception {
+        readModel.publishUserCreated(1);
+        readModel.publishCardAdded(1, "1234567890", "Chase");
+        TreeMap<String, Double> balanceHistory = new TreeMap<>();
+        balanceHistory.put("2024-01-01", 100.0);
+        balanceHistory.put("2024-01-10", 250.0);
+        readModel.publishBalanceHistoryChanged("1234567890", balanceHistory);
+        // Later changes to the caller's map are not seen by the read model
+        balanceHistory.put("2024-01-20", 999.0);
+        readModel.awaitCaughtUp();
+
+        assertEquals(Optional.of(List.of(new CreditCardView("Chase", "1234567890"))),
+                readModel.findCreditCardViewsOfUser(1));
+        assertEquals(Optional.of(1), readModel.findUserIdOfCreditCard("1234567890"));
+        assertEquals(250.0, readModel.getCurrentBalance("1234567890"));
+        assertEquals(0.0, readModel.getBalanceOnDate("1234567890", LocalDate.of(2023, 12, 31)));
+        assertEquals(100.0, readModel.getBalanceOnDate("1234567890", LocalDate.of(2024, 1, 5)));
+        assertEquals(250.0, readModel.getBalanceOnDate("1234567890", LocalDate.of(2024, 1, 25)));
+
+        assertEquals(0, readModel.getStats().getPendingChanges());
+        assertTrue(readModel.getStats().getMaxLagMillis() >= readModel.getStats().getLastLagMillis());
+    }
+
+    @Test
+    public void testPublishUserDeleted_RemovesCards() throws Exception {
+        readModel.publishUserCreated(1);
+        readModel.publishCardAdded(1, "1234567890", "Chase");
+        readModel.publishUserDeleted(1);
+        // Balance change of a deleted card arriving late
+        readModel.publishBalanceHistoryChanged("1234567890", new TreeMap<>());
+        readModel.awaitCaughtUp();
+
+        // Unknown to the read model, callers fall back to the database
+        assertEquals(Optional.empty(), readModel.findCreditCardViewsOfUser(1));
+        assertEquals(Optional.empty(), readModel.findUserIdOfCreditCard("1234567890"));
+        assertTrue(Double.isNaN(readModel.getCurrentBalance("1234567890")));
+    }
+
+    @Test
+    public void testRebuild_LoadsStoredCards() throws Exception {
+        UserRepository userRepository = mock(UserRepository.class);
+        CreditCardRepository creditCardRepository = mock(CreditCardRepository.class);
+        when(userRepository.findIdsAfterId(eq(0), any(Pageable.class))).thenReturn(List.of(1, 2));
+        when(creditCardRepository.findOwnerSnapshotsAfterId(eq(0), any(Pageable.class))).thenReturn(List.of(
+                new CreditCardOwnerSnapshot(7, 1, "1234567890", "Chase", "{\"2024-01-01\":100.0}")));
+        CreditCardReadModel loadedReadModel = new CreditCardReadModel(userRepository, creditCardRepository,
+                new ShardRouter(1), Duration.ofMillis(100));
+        loadedReadModel.rebuild();
+        loadedReadModel.awaitCaughtUp();
+
+        assertEquals(Optional.of(List.of(new CreditCardView("Chase", "1234567890"))),
+                loadedReadModel.findCreditCardViewsOfUser(1));
+        assertEquals(Optional.of(List.of()), loadedReadModel.findCreditCardViewsOfUser(2));
+        assertEquals(100.0, loadedReadModel.getCurrentBalance("1234567890"));
+        loadedReadModel.close();
+    }
+
+    @Test
+    public void testRebuild_RetriedAfterFailure() throws Exception {
+        UserRepository userRepository = mock(UserRepository.class);
+        CreditCardRepository creditCardRepository = mock(CreditCardRepository.class);
+        when(userRepository.findIdsAfterId(eq(0), any(Pageable.class)))
+                .thenThrow(new IllegalStateException("database unavailable"))
+                .thenReturn(List.of(1));
+        CreditCardReadModel loadedReadModel = new CreditCardReadModel(userRepository, creditCardRepository,
+                new ShardRouter(1), Duration.ofMillis(100));
+        loadedReadModel.rebuild();
+        loadedReadModel.awaitCaughtUp();
+
+        // The failure is shown in the stats, reads fall back to the database
+        assertFalse(loadedReadModel.getStats().isReady());
+        assertEquals(1, loadedReadModel.getStats().getRebuildFailures());
+        assertTrue(loadedReadModel.getStats().getLastRebuildError().contains("database unavailable"));
+        assertEquals(Optional.empty(), loadedReadModel.findCreditCardViewsOfUser(1));
+
+        Thread.sleep(500);
+        assertTrue(loadedReadModel.getStats().isReady());
+        assertNull(loadedReadModel.getStats().getLastRebuildError());
+        assertEquals(Optional.of(List.of()), loadedReadModel.findCreditCardViewsOfUser(1));
+        loadedReadModel.close();
+    }
+}
@@ -0,0 +1,41 @@
+package com.shepherdmoney.interviewproject.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class IdempotencyIndexTests {
+
+    @Test
+    public void testClaim_InProgressClaimExpiresAfterLease() throws Exception {
+        IdempotencyIndex idempotencyIndex = new IdempotencyIndex(100, Duration.ofMinutes(5),
+                Duration.ofMillis(100));
+        assertNull(idempotencyIndex.claim("key", "batch"));
+        // Still being applied
+        IdempotencyIndex.BatchResult duplicate = idempotencyIndex.claim("key", "batch");
+        assertNotNull(duplicate);
+        assertFalse(duplicate.completed());
+
+        // The request never completed nor released the key
+        Thread.sleep(300);
+        assertNull(idempotencyIndex.claim("key", "batch"));
+    }
+
+    @Test
+    public void testRelease_FailedClaimExpiresAfterTtl() throws Exception {
+        IdempotencyIndex idempotencyIndex = new IdempotencyIndex(100, Duration.ofMillis(100),
+                Duration.ofMinutes(5));
+        assertNull(idempotencyIndex.claim("key", "batch"));
+        idempotencyIndex.release("key", Set.of(1));
+        assertEquals(Set.of(1), idempotencyIndex.getAppliedShards("key"));
+
+        Thread.sleep(300);
+        assertEquals(Set.of(), idempotencyIndex.getAppliedShards("key"));
+    }
+}
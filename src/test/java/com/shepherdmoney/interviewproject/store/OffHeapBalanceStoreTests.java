@@ -0,0 +1,137 @@
+package com.shepherdmoney.interviewproject.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.gson.Gson;
+import com.shepherdmoney.interviewproject.repository.CreditCardRepository;
+import com.shepherdmoney.interviewproject.repository.CreditCardSnapshot;
+import com.shepherdmoney.interviewproject.repository.DatabaseInstanceRepository;
+import com.shepherdmoney.interviewproject.shard.ShardRouter;
+
+class OffHeapBalanceStoreTests {
+
+    @TempDir
+    private Path tempDir;
+
+    private TreeMap<String, Double> history(int days) {
+        TreeMap<String, Double> balanceHistory = new TreeMap<>();
+        for (int day = 1; day <= days; day++) {
+            balanceHistory.put(LocalDate.of(2024, 1, day).toString(), day * 10.0);
+        }
+        return balanceHistory;
+    }
+
+    // Open a store and check it against (or rebuild it from) the given stored cards
+    private OffHeapBalanceStore loadedStore(String path, int slotCount, int historyCapacity,
+            CreditCardSnapshot... snapshots) throws IOException {
+        return loadedStore(path, slotCount, historyCapacity, "jdbc:h2:mem:test#1", snapshots);
+    }
+
+    private OffHeapBalanceStore loadedStore(String path, int slotCount, int historyCapacity, String databaseIdentity,
+            CreditCardSnapshot... snapshots) throws IOException {
+        OffHeapBalanceStore store = new OffHeapBalanceStore(path, slotCount, historyCapacity);
+        CreditCardRepository creditCardRepository = mock(CreditCardRepository.class);
+        when(creditCardRepository.findSnapshotsAfterId(anyInt(), any(Pageable.class))).thenReturn(List.of(snapshots));
+        DatabaseInstanceRepository databaseInstanceRepository = mock(DatabaseInstanceRepository.class);
+        when(databaseInstanceRepository.findIdentity()).thenReturn(databaseIdentity);
+        ReflectionTestUtils.setField(store, "creditCardRepository", creditCardRepository);
+        ReflectionTestUtils.setField(store, "databaseInstanceRepository", databaseInstanceRepository);
+        ReflectionTestUtils.setField(store, "shardRouter", new ShardRouter(1));
+        store.load();
+        return store;
+    }
+
+    @Test
+    public void testGetBalanceOnDate_ClosestPreviousEntry() throws IOException {
+        OffHeapBalanceStore store = loadedStore(tempDir.resolve("store.dat").toString(), 16, 8);
+        TreeMap<String, Double> balanceHistory = new TreeMap<>();
+        balanceHistory.put("2024-01-01", 100.0);
+        balanceHistory.put("2024-01-10", 250.0);
+        store.put("1234567890", balanceHistory);
+
+        assertEquals(0.0, store.getBalanceOnDate("1234567890", LocalDate.of(2023, 12, 31)));
+        assertEquals(100.0, store.getBalanceOnDate("1234567890", LocalDate.of(2024, 1, 5)));
+        assertEquals(250.0, store.getBalanceOnDate("1234567890", LocalDate.of(2024, 1, 10)));
+        assertEquals(250.0, store.getCurrentBalance("1234567890"));
+        store.close();
+    }
+
+    @Test
+    public void testGetBalanceOnDate_UnknownWhenTruncatedOrMissing() throws IOException {
+        OffHeapBalanceStore store = loadedStore(tempDir.resolve("store.dat").toString(), 16, 4);
+        store.put("1234567890", history(10));
+
+        // Only the latest 4 days are kept
+        assertEquals(70.0, store.getBalanceOnDate("1234567890", LocalDate.of(2024, 1, 7)));
+        assertTrue(Double.isNaN(store.getBalanceOnDate("1234567890", LocalDate.of(2024, 1, 6))));
+        // Unknown card number, or a number too long to be stored
+        assertTrue(Double.isNaN(store.getCurrentBalance("0987654321")));
+        assertFalse(store.put("1".repeat(33), history(1)));
+
+        store.remove("1234567890");
+        assertTrue(Double.isNaN(store.getCurrentBalance("1234567890")));
+        store.close();
+    }
+
+    @Test
+    public void testReopen_RemapsClosedFile() throws IOException {
+        String path = tempDir.resolve("store.dat").toString();
+        OffHeapBalanceStore store = loadedStore(path, 4, 8);
+        for (int card = 1; card <= 4; card++) {
+            assertTrue(store.put("card-" + card, history(card)));
+        }
+        store.close();
+
+        // Served from the file, the database is not read
+        OffHeapBalanceStore reopenedStore = loadedStore(path, 4, 8);
+        assertTrue(reopenedStore.isRemapped());
+        for (int card = 1; card <= 4; card++) {
+            assertEquals(card * 10.0, reopenedStore.getCurrentBalance("card-" + card));
+        }
+        reopenedStore.close();
+    }
+
+    @Test
+    public void testReopen_RebuildsFromDatabaseWhenNotTrusted() throws IOException {
+        String path = tempDir.resolve("store.dat").toString();
+        OffHeapBalanceStore store = loadedStore(path, 4, 8);
+        assertTrue(store.put("card-1", history(1)));
+        assertTrue(store.put("card-2", history(2)));
+        store.close();
+
+        // Another database, which has card-1 with a newer balance and no other card
+        CreditCardSnapshot snapshot = new CreditCardSnapshot(1, "card-1", new Gson().toJson(history(5)));
+        OffHeapBalanceStore reopenedStore = new OffHeapBalanceStore(path, 4, 8);
+        assertTrue(Double.isNaN(reopenedStore.getCurrentBalance("card-1")), "Served before it was checked");
+        reopenedStore.close();
+        reopenedStore = loadedStore(path, 4, 8, "jdbc:h2:mem:other#2", snapshot);
+        assertEquals(50.0, reopenedStore.getCurrentBalance("card-1"));
+        assertTrue(Double.isNaN(reopenedStore.getCurrentBalance("card-2")));
+        assertTrue(reopenedStore.put("card-3", history(3)));
+
+        // Not closed (a crash), so the next run rebuilds it as well
+        OffHeapBalanceStore crashedStore = loadedStore(path, 4, 8, "jdbc:h2:mem:other#2", snapshot);
+        assertFalse(crashedStore.isRemapped());
+        assertTrue(Double.isNaN(crashedStore.getCurrentBalance("card-3")));
+        assertEquals(50.0, crashedStore.getCurrentBalance("card-1"));
+        crashedStore.close();
+        reopenedStore.close();
+    }
+}
@@ -0,0 +1,29 @@
+package com.shepherdmoney.interviewproject.util;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+
+import org.hibernate.cache.spi.entry.CacheEntry;
+import org.junit.jupiter.api.Test;
+
+class CacheEntryWeigherTests {
+
+    private CacheEntry cacheEntry(Serializable... state) {
+        CacheEntry cacheEntry = mock(CacheEntry.class);
+        when(cacheEntry.getDisassembledState()).thenReturn(state);
+        return cacheEntry;
+    }
+
+    @Test
+    public void testWeigh_GrowsWithBalanceHistory() {
+        CacheEntryWeigher weigher = new CacheEntryWeigher();
+        int smallCard = weigher.weigh(1, cacheEntry("Chase", "1234567890", null));
+        int largeCard = weigher.weigh(1, cacheEntry("Chase", "1234567890", "x".repeat(100_000)));
+
+        assertTrue(smallCard < 1_000, "Small entry weighs " + smallCard);
+        assertTrue(largeCard > 200_000, "Large entry weighs " + largeCard);
+    }
+}
@@ -0,0 +1,62 @@
+package com.shepherdmoney.interviewproject.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class SingleFlightTests {
+
+    @Test
+    public void testExecute_CoalescesConcurrentLoads() throws Exception {
+        SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        // First load blocks until released, so the others join it
+        CompletableFuture<Integer> first = singleFlight.execute("1234567890", () -> {
+            loads.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 42;
+        }, executor);
+        CompletableFuture<Integer> second = singleFlight.execute("1234567890", () -> loads.incrementAndGet(),
+                executor);
+        assertSame(first, second, "Concurrent load was not coalesced");
+
+        release.countDown();
+        assertEquals(42, first.get(5, TimeUnit.SECONDS));
+        assertEquals(1, loads.get(), "Key was loaded more than once");
+        assertEquals(0, singleFlight.inFlightCount(), "Completed load is still in flight");
+
+        // Once completed, the next call loads again
+        assertEquals(2, singleFlight.execute("1234567890", () -> loads.incrementAndGet(), executor)
+                .get(5, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testExecute_RejectedExecution() {
+        SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+
+        CompletableFuture<Integer> load = singleFlight.execute("1234567890", () -> 42, command -> {
+            throw new RejectedExecutionException();
+        });
+
+        assertTrue(load.isCompletedExceptionally(), "Rejected load did not fail");
+        assertEquals(0, singleFlight.inFlightCount(), "Rejected load is still in flight");
+    }
+}